@@ -28,74 +28,185 @@ import org.terasology.math.geom.Vector3f;
 import org.terasology.minion.move.MinionMoveComponent;
 import org.terasology.minion.move.MoveToAction;
 import org.terasology.nui.properties.Range;
+import org.terasology.registry.In;
 import org.terasology.wildAnimalsMadness.components.FlockComponent;
-
+import org.terasology.wildAnimalsMadness.system.FlockSystem;
+import org.terasology.wildAnimalsMadness.system.HiveSpeedSystem;
+import org.terasology.wildAnimalsMadness.system.MadnessMetrics;
+
+/**
+ * Moves a flock member towards its steering target. Move inputs are coalesced: while the
+ * move direction stays within {@link #inputThreshold} of the last input sent, the elapsed
+ * time is held back and sent with the next input, at the latest after
+ * {@link #maxInputInterval} seconds (or longer for members far from the players).
+ * Steady-state ticks that hold their input do not allocate.
+ */
 @BehaviorAction(name = "flock_move")
 public class FlockMoveAction extends BaseAction {
     private static Logger logger = LoggerFactory.getLogger(MoveToAction.class);
     @Range(min = 0, max = 10)
     private float distance = 0.2f;
 
+    /**
+     * Smallest change of the normalized move direction (roughly in radians) that causes a new move input.
+     */
+    @Range(min = 0, max = 2)
+    private float inputThreshold = 0.1f;
 
-    @Override
-    public BehaviorState modify(Actor actor, BehaviorState result) {
-        BehaviorState state = BehaviorState.FAILURE;
-        MinionMoveComponent moveComponent = actor.getComponent(MinionMoveComponent.class);
-        FlockComponent flockComponent = actor.getComponent(FlockComponent.class);
+    /**
+     * Longest time, in seconds, a move input may be held back.
+     */
+    @Range(min = 0, max = 1)
+    private float maxInputInterval = 0.05f;
 
+    @In
+    private FlockSystem flockSystem;
+    @In
+    private MadnessMetrics metrics;
+    @In
+    private HiveSpeedSystem hiveSpeed;
 
-        if ((null != moveComponent) && (null != flockComponent)) {
-            if (flockComponent.flockCentre == null) {
-                return BehaviorState.FAILURE;
-            }
+    private final Vector3f position = new Vector3f();
 
-            moveComponent.target = flockComponent.flockCentre;
+    @Override
+    public void construct(Actor actor) {
+        MoveState moveState = actor.getValue(getId());
+        if (null != moveState) {
+            moveState.reset();
+        }
+    }
 
-            if (moveComponent.type == MinionMoveComponent.Type.DIRECT) {
+    @Override
+    public BehaviorState modify(Actor actor, BehaviorState result) {
+        if (null == metrics || !metrics.isEnabled()) {
+            return move(actor);
+        }
+        long start = metrics.start();
+        BehaviorState state = move(actor);
+        metrics.stop(MadnessMetrics.Timer.FLOCK_MOVE_ACTION, start);
+        return state;
+    }
 
-                boolean reachedTarget = processDirect(actor, moveComponent);
-                state = reachedTarget ? BehaviorState.SUCCESS : BehaviorState.RUNNING;
+    private BehaviorState move(Actor actor) {
+        MinionMoveComponent moveComponent = actor.getComponent(MinionMoveComponent.class);
+        FlockComponent flockComponent = actor.getComponent(FlockComponent.class);
+        if ((null == moveComponent) || (null == flockComponent) || (null == flockSystem)) {
+            return BehaviorState.FAILURE;
+        }
 
-            }
+        MoveState moveState = actor.getValue(getId());
+        if (null == moveState) {
+            moveState = new MoveState();
+            actor.setValue(getId(), moveState);
+        }
+        moveState.pendingDelta += actor.getDelta();
 
-            if (moveComponent.horizontalCollision) {
-                moveComponent.horizontalCollision = false;
-                moveComponent.jumpCooldown = 0.3f;
-            }
-            moveComponent.jumpCooldown -= actor.getDelta();
-            moveComponent.jumpMode = moveComponent.jumpCooldown > 0;
-            actor.save(moveComponent);
+        // Members far from the players move in fewer, longer steps.
+        float lodInterval = flockSystem.getInputInterval(actor.getEntity());
+        if (moveState.pendingDelta < lodInterval) {
+            return BehaviorState.RUNNING;
+        }
+        float interval = Math.max(maxInputInterval, lodInterval);
 
+        if (null == moveComponent.target) {
+            moveComponent.target = new Vector3f();
+        }
+        if (!flockSystem.getSteeringTarget(actor.getEntity(), moveComponent.target)) {
+            // Not steered yet: wait for the first flock update instead of walking anywhere.
+            moveState.pendingDelta = 0;
+            return BehaviorState.RUNNING;
         }
 
+        if (moveComponent.type != MinionMoveComponent.Type.DIRECT) {
+            return BehaviorState.FAILURE;
+        }
+        BehaviorState state = processDirect(actor, moveComponent, moveState, interval);
+        if (null != metrics && metrics.isEnabled()) {
+            metrics.count(MadnessMetrics.Counter.ENTITIES, 1);
+        }
         return state;
     }
 
-    private boolean processDirect(Actor actor, MinionMoveComponent moveComponent) {
-
+    /**
+     * Computes the move direction towards the target and sends it as a move input if it
+     * differs enough from the last input, if the member arrived or has to jump, or if the
+     * input was held back for too long.
+     */
+    private BehaviorState processDirect(Actor actor, MinionMoveComponent moveComponent, MoveState moveState, float interval) {
         LocationComponent locationComponent = actor.getComponent(LocationComponent.class);
-        boolean reachedTarget = false;
-        Vector3f worldPos = new Vector3f(locationComponent.getWorldPosition());
-        Vector3f targetDirection = new Vector3f();
-        targetDirection.sub(moveComponent.target, worldPos);
-        Vector3f drive = new Vector3f();
+        if (null == locationComponent) {
+            return BehaviorState.FAILURE;
+        }
+        locationComponent.getWorldPosition(position);
+        float directionX = moveComponent.target.x - position.x;
+        float directionZ = moveComponent.target.z - position.z;
+        float distanceSquared = directionX * directionX + directionZ * directionZ;
+
+        boolean reachedTarget = distanceSquared <= distance * distance;
+        float driveX = 0;
+        float driveZ = 0;
+        if (!reachedTarget) {
+            float length = (float) Math.sqrt(distanceSquared);
+            driveX = directionX / length;
+            driveZ = directionZ / length;
+        }
 
-        float yaw = (float) Math.atan2(targetDirection.x, targetDirection.z);
-        if((targetDirection.x < distance) && (targetDirection.y < distance) && (targetDirection.z < distance)) {
+        float changeX = driveX - moveState.driveX;
+        float changeZ = driveZ - moveState.driveZ;
+        boolean changed = !moveState.sent
+                || reachedTarget != moveState.reachedTarget
+                || moveComponent.horizontalCollision
+                || changeX * changeX + changeZ * changeZ > inputThreshold * inputThreshold
+                || moveState.pendingDelta >= interval;
+        if (!changed) {
+            return BehaviorState.RUNNING;
+        }
 
-        //if (targetDirection.x * targetDirection.x + targetDirection.z * targetDirection.z <= distance * distance) {
-            drive.set(0, 0, 0);
-            reachedTarget = true;
-        } else {
-            targetDirection.normalize();
-            drive.set(targetDirection);
+        float elapsed = moveState.pendingDelta;
+        if (moveComponent.horizontalCollision) {
+            moveComponent.horizontalCollision = false;
+            moveComponent.jumpCooldown = 0.3f;
         }
-        float requestedYaw = 180f + yaw * TeraMath.RAD_TO_DEG;
+        moveComponent.jumpCooldown -= elapsed;
+        moveComponent.jumpMode = moveComponent.jumpCooldown > 0;
+        actor.save(moveComponent);
 
-        CharacterMoveInputEvent wantedInput = new CharacterMoveInputEvent(0, 0, requestedYaw, drive, false, false, moveComponent.jumpMode, (long) (actor.getDelta() * 1000));
+        if (null != hiveSpeed) {
+            hiveSpeed.resolve(actor.getEntity());
+        }
+        float requestedYaw = 180f + (float) Math.atan2(directionX, directionZ) * TeraMath.RAD_TO_DEG;
+        CharacterMoveInputEvent wantedInput = new CharacterMoveInputEvent(0, 0, requestedYaw, new Vector3f(driveX, 0, driveZ),
+                false, false, moveComponent.jumpMode, (long) (elapsed * 1000));
         actor.getEntity().send(wantedInput);
+        if (null != metrics && metrics.isEnabled()) {
+            metrics.count(MadnessMetrics.Counter.SAVES, 1);
+            metrics.count(MadnessMetrics.Counter.EVENTS, 1);
+        }
 
+        moveState.sent = true;
+        moveState.reachedTarget = reachedTarget;
+        moveState.driveX = driveX;
+        moveState.driveZ = driveZ;
+        moveState.pendingDelta = 0;
+        return reachedTarget ? BehaviorState.SUCCESS : BehaviorState.RUNNING;
+    }
 
-        return reachedTarget;
+    /**
+     * The last move input sent for an actor, and the time held back since.
+     */
+    private static final class MoveState {
+        private boolean sent;
+        private boolean reachedTarget;
+        private float driveX;
+        private float driveZ;
+        private float pendingDelta;
+
+        private void reset() {
+            sent = false;
+            reachedTarget = false;
+            driveX = 0;
+            driveZ = 0;
+            pendingDelta = 0;
+        }
     }
 }
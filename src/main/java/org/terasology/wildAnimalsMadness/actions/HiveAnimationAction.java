@@ -0,0 +1,51 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.actions;
+
+import org.terasology.entitySystem.metadata.ComponentFieldUri;
+import org.terasology.logic.behavior.BehaviorAction;
+import org.terasology.logic.behavior.GroupMindComponent;
+import org.terasology.logic.behavior.core.Actor;
+import org.terasology.logic.behavior.core.BaseAction;
+import org.terasology.logic.behavior.core.BehaviorState;
+import org.terasology.registry.In;
+import org.terasology.wildAnimalsMadness.system.HiveBehaviorSystem;
+
+/**
+ * Hive counterpart of the {@code animation} action: switches the animation of every
+ * member of the hive, in the batched pass of the {@link HiveBehaviorSystem}.
+ */
+@BehaviorAction(name = "hive_animation")
+public class HiveAnimationAction extends BaseAction {
+
+    private ComponentFieldUri play;
+    private ComponentFieldUri loop;
+
+    @In
+    private HiveBehaviorSystem hiveBehavior;
+
+    @Override
+    public void construct(Actor actor) {
+        if (null != hiveBehavior && actor.hasComponent(GroupMindComponent.class)) {
+            hiveBehavior.setAnimation(actor.getEntity(), play, loop);
+        }
+    }
+
+    @Override
+    public BehaviorState modify(Actor actor, BehaviorState result) {
+        return actor.hasComponent(GroupMindComponent.class) ? BehaviorState.SUCCESS : BehaviorState.FAILURE;
+    }
+}
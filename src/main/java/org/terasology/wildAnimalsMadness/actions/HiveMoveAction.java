@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.actions;
+
+import org.terasology.logic.behavior.BehaviorAction;
+import org.terasology.logic.behavior.GroupMindComponent;
+import org.terasology.logic.behavior.core.Actor;
+import org.terasology.logic.behavior.core.BaseAction;
+import org.terasology.logic.behavior.core.BehaviorState;
+import org.terasology.nui.properties.Range;
+import org.terasology.registry.In;
+import org.terasology.wildAnimalsMadness.system.HiveBehaviorSystem;
+
+/**
+ * Moves all members of a hive towards a random location around their centre. The target
+ * is chosen once per hive; the movement inputs are sent by the {@link HiveBehaviorSystem}.
+ * Succeeds once enough members have arrived.
+ */
+@BehaviorAction(name = "hive_move")
+public class HiveMoveAction extends BaseAction {
+
+    @Range(min = 0, max = 50)
+    private float radius = 10f;
+    @Range(min = 0, max = 10)
+    private float distance = 1f;
+    @Range(min = 0, max = 1)
+    private float arrivalRatio = 0.8f;
+
+    @In
+    private HiveBehaviorSystem hiveBehavior;
+
+    @Override
+    public void construct(Actor actor) {
+        if (null != hiveBehavior && actor.hasComponent(GroupMindComponent.class)) {
+            hiveBehavior.startMove(actor.getEntity(), radius, distance, arrivalRatio);
+        }
+    }
+
+    @Override
+    public BehaviorState modify(Actor actor, BehaviorState result) {
+        if (null == hiveBehavior || !hiveBehavior.isMoving(actor.getEntity())) {
+            return BehaviorState.FAILURE;
+        }
+        return hiveBehavior.isMoveComplete(actor.getEntity()) ? BehaviorState.SUCCESS : BehaviorState.RUNNING;
+    }
+
+    @Override
+    public void destruct(Actor actor) {
+        if (null != hiveBehavior) {
+            hiveBehavior.stopMove(actor.getEntity());
+        }
+    }
+}
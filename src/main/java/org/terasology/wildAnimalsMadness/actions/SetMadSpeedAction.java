@@ -23,6 +23,9 @@ import org.terasology.logic.behavior.core.BehaviorState;
 import org.terasology.logic.characters.CharacterMovementComponent;
 import org.terasology.logic.behavior.GroupMindComponent;
 import org.terasology.nui.properties.Range;
+import org.terasology.registry.In;
+import org.terasology.wildAnimalsMadness.system.HiveSpeedSystem;
+import org.terasology.wildAnimalsMadness.system.MadnessMetrics;
 
 @BehaviorAction(name = "set_mad_speed")
 public class SetMadSpeedAction extends BaseAction {
@@ -30,16 +33,40 @@ public class SetMadSpeedAction extends BaseAction {
     @Range(max = 10f)
     private float speedMultiplier;
 
+    @In
+    private HiveSpeedSystem hiveSpeed;
+    @In
+    private MadnessMetrics metrics;
+
     @Override
     public void construct(Actor actor) {
+        if (null == metrics || !metrics.isEnabled()) {
+            setSpeed(actor);
+            return;
+        }
+        long start = metrics.start();
+        setSpeed(actor);
+        metrics.stop(MadnessMetrics.Timer.SET_MAD_SPEED_ACTION, start);
+    }
+
+    private void setSpeed(Actor actor) {
         if (actor.hasComponent(GroupMindComponent.class)) {
+            if (null != hiveSpeed) {
+                hiveSpeed.setSpeed(actor.getEntity(), speedMultiplier);
+                return;
+            }
             GroupMindComponent hivemindComponent = actor.getComponent(GroupMindComponent.class);
 
             if (!hivemindComponent.groupMembers.isEmpty()) {
                 for (EntityRef entityRef : hivemindComponent.groupMembers) {
                     CharacterMovementComponent characterMovementComponent = entityRef.getComponent(CharacterMovementComponent.class);
-                    characterMovementComponent.speedMultiplier = speedMultiplier;
-                    entityRef.saveComponent(characterMovementComponent);
+                    if (null != characterMovementComponent) {
+                        characterMovementComponent.speedMultiplier = speedMultiplier;
+                        entityRef.saveComponent(characterMovementComponent);
+                        if (null != metrics && metrics.isEnabled()) {
+                            metrics.count(MadnessMetrics.Counter.SAVES, 1);
+                        }
+                    }
                 }
             }
         }
@@ -16,12 +16,56 @@
 package org.terasology.wildAnimalsMadness.components;
 
 import org.terasology.entitySystem.Component;
-import org.terasology.math.geom.Vector3f;
 
 public class FlockComponent implements Component {
 
+    /**
+     * Identifies the flock this entity belongs to. When left empty, the first
+     * label of the entity's GroupTagComponent is used instead.
+     */
+    public String flockId;
+
+    /**
+     * When set, the flock id (or group label) names a herd instead of a flock: the herd is
+     * split into flocks of entities within {@link #searchRadius} of each other, which merge
+     * and split as the entities move.
+     */
+    public boolean cluster;
+
+    /**
+     * Initial speed of the entity. Once it is steered, the entity takes the average speed of
+     * its neighbours, which is kept by the FlockSystem rather than in this component.
+     */
     public float speed = 5f;
     public float searchRadius = 10f;
-    public Vector3f flockCentre = Vector3f.zero();
-    public Vector3f flockAvoid = Vector3f.zero();
+
+    /**
+     * Neighbours closer than this distance push the entity away.
+     */
+    public float separationDistance = 2f;
+    public float separationWeight = 1.5f;
+    public float alignmentWeight = 1f;
+    public float cohesionWeight = 1f;
+
+    /**
+     * When set, the entity reacts to its {@link #neighbourCount} nearest neighbours instead of
+     * every neighbour within {@link #searchRadius}, which keeps its cost bounded in dense herds.
+     */
+    public boolean topological;
+    public int neighbourCount = 7;
+
+    /**
+     * Within this distance from the nearest player the entity is steered on every flock
+     * update; further away it is steered every {@link #lodReducedInterval} updates.
+     */
+    public float lodNearDistance = 48f;
+
+    /**
+     * Beyond this distance from the nearest player the entity only follows the average
+     * motion of the distant part of its flock, every {@link #lodFarInterval} updates.
+     * Non-positive values disable the level of detail.
+     */
+    public float lodFarDistance = 128f;
+    public int lodReducedInterval = 4;
+    public int lodFarInterval = 16;
 }
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.components;
+
+import org.terasology.entitySystem.Component;
+
+/**
+ * Speed modifier shared by every member of a hive. It is owned by the hive entity; members
+ * are given it over the following frames, see HiveSpeedSystem.
+ */
+public class HiveSpeedComponent implements Component {
+
+    public float speedMultiplier = 1f;
+}
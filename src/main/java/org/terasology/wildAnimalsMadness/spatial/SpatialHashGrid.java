@@ -0,0 +1,345 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.spatial;
+
+import java.util.Arrays;
+
+/**
+ * Uniform hash grid over integer handles. Each handle is kept in the
+ * cell containing its last known position, and is only re-linked when
+ * it crosses a cell boundary. Radius queries visit the cells overlapping
+ * the query sphere only, so with a cell size close to the search radius
+ * a query touches at most 27 cells regardless of the total population.
+ * A query that would visit more cells than there are stored handles scans
+ * the handles instead, so a cell size far below the radius stays bounded.
+ */
+public class SpatialHashGrid {
+
+    private static final int EMPTY = -1;
+    private static final long UNUSED_KEY = Long.MIN_VALUE;
+    private static final int COORDINATE_BITS = 21;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private float cellSize;
+    private float inverseCellSize;
+
+    private long[] cellKeys;
+    private int[] cellHeads;
+    private int usedCells;
+
+    private float[] x = new float[0];
+    private float[] y = new float[0];
+    private float[] z = new float[0];
+    private long[] handleCells = new long[0];
+    private int[] next = new int[0];
+    private int[] previous = new int[0];
+    private boolean[] present = new boolean[0];
+    private int size;
+
+    public SpatialHashGrid(float cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1f / cellSize;
+        allocateTable(MIN_TABLE_SIZE);
+    }
+
+    /**
+     * Changes the cell size, re-bucketing every stored handle if it differs from the current one.
+     */
+    public void setCellSize(float newCellSize) {
+        if (newCellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + newCellSize);
+        }
+        if (newCellSize == cellSize) {
+            return;
+        }
+        cellSize = newCellSize;
+        inverseCellSize = 1f / newCellSize;
+
+        allocateTable(cellKeys.length);
+        for (int handle = 0; handle < present.length; handle++) {
+            if (present[handle]) {
+                link(handle, cellKey(x[handle], y[handle], z[handle]));
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int handle) {
+        return handle >= 0 && handle < present.length && present[handle];
+    }
+
+    public float getX(int handle) {
+        return x[handle];
+    }
+
+    public float getY(int handle) {
+        return y[handle];
+    }
+
+    public float getZ(int handle) {
+        return z[handle];
+    }
+
+    /**
+     * Inserts a handle, or moves it if it is already stored.
+     */
+    public void put(int handle, float posX, float posY, float posZ) {
+        if (handle < 0) {
+            throw new IllegalArgumentException("Negative handle: " + handle);
+        }
+        ensureHandleCapacity(handle + 1);
+        x[handle] = posX;
+        y[handle] = posY;
+        z[handle] = posZ;
+
+        long key = cellKey(posX, posY, posZ);
+        if (present[handle]) {
+            if (handleCells[handle] == key) {
+                return;
+            }
+            unlink(handle);
+        } else {
+            present[handle] = true;
+            size++;
+        }
+        link(handle, key);
+    }
+
+    public void remove(int handle) {
+        if (!contains(handle)) {
+            return;
+        }
+        unlink(handle);
+        present[handle] = false;
+        size--;
+    }
+
+    /**
+     * Collects every handle whose position lies within {@code radius} of the given point.
+     *
+     * @param out receives the matching handles; results beyond its length are dropped
+     * @return the number of handles written to {@code out}
+     */
+    public int query(float posX, float posY, float posZ, float radius, int[] out) {
+        float radiusSquared = radius * radius;
+        if (Float.isNaN(radius) || Float.isInfinite(radius)) {
+            return scan(posX, posY, posZ, radiusSquared, out);
+        }
+        int minX = cellCoordinate(posX - radius);
+        int maxX = cellCoordinate(posX + radius);
+        int minY = cellCoordinate(posY - radius);
+        int maxY = cellCoordinate(posY + radius);
+        int minZ = cellCoordinate(posZ - radius);
+        int maxZ = cellCoordinate(posZ + radius);
+        if (cellsAbove(size, (long) maxX - minX + 1, (long) maxY - minY + 1, (long) maxZ - minZ + 1)) {
+            return scan(posX, posY, posZ, radiusSquared, out);
+        }
+
+        int count = 0;
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            for (int cellY = minY; cellY <= maxY; cellY++) {
+                for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+                    int slot = findSlot(packKey(cellX, cellY, cellZ));
+                    if (slot == EMPTY) {
+                        continue;
+                    }
+                    for (int handle = cellHeads[slot]; handle != EMPTY; handle = next[handle]) {
+                        float dx = x[handle] - posX;
+                        float dy = y[handle] - posY;
+                        float dz = z[handle] - posZ;
+                        if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                            if (count == out.length) {
+                                return count;
+                            }
+                            out[count++] = handle;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Compares the number of cells of a box with a limit, without overflowing: coordinates
+     * saturate for huge radii, so each extent may be up to 2^32.
+     */
+    private static boolean cellsAbove(long limit, long extentX, long extentY, long extentZ) {
+        return extentX > limit || extentX * extentY > limit || extentX * extentY * extentZ > limit;
+    }
+
+    private int scan(float posX, float posY, float posZ, float radiusSquared, int[] out) {
+        int count = 0;
+        for (int handle = 0; handle < present.length; handle++) {
+            if (!present[handle]) {
+                continue;
+            }
+            float dx = x[handle] - posX;
+            float dy = y[handle] - posY;
+            float dz = z[handle] - posZ;
+            if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                if (count == out.length) {
+                    return count;
+                }
+                out[count++] = handle;
+            }
+        }
+        return count;
+    }
+
+    private void link(int handle, long key) {
+        int slot = findOrCreateSlot(key);
+        int head = cellHeads[slot];
+        next[handle] = head;
+        previous[handle] = EMPTY;
+        if (head != EMPTY) {
+            previous[head] = handle;
+        }
+        cellHeads[slot] = handle;
+        handleCells[handle] = key;
+    }
+
+    private void unlink(int handle) {
+        int before = previous[handle];
+        int after = next[handle];
+        if (before != EMPTY) {
+            next[before] = after;
+        } else {
+            cellHeads[findSlot(handleCells[handle])] = after;
+        }
+        if (after != EMPTY) {
+            previous[after] = before;
+        }
+        next[handle] = EMPTY;
+        previous[handle] = EMPTY;
+    }
+
+    private int cellCoordinate(float value) {
+        return (int) Math.floor(value * inverseCellSize);
+    }
+
+    private long cellKey(float posX, float posY, float posZ) {
+        return packKey(cellCoordinate(posX), cellCoordinate(posY), cellCoordinate(posZ));
+    }
+
+    private static long packKey(int cellX, int cellY, int cellZ) {
+        return ((cellX & COORDINATE_MASK) << (2 * COORDINATE_BITS))
+                | ((cellY & COORDINATE_MASK) << COORDINATE_BITS)
+                | (cellZ & COORDINATE_MASK);
+    }
+
+    private int hash(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & (cellKeys.length - 1);
+    }
+
+    private int findSlot(long key) {
+        int mask = cellKeys.length - 1;
+        for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+            long current = cellKeys[slot];
+            if (current == key) {
+                return slot;
+            }
+            if (current == UNUSED_KEY) {
+                return EMPTY;
+            }
+        }
+    }
+
+    private int findOrCreateSlot(long key) {
+        if ((usedCells + 1) * 2 > cellKeys.length) {
+            rehash();
+        }
+        int mask = cellKeys.length - 1;
+        for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+            long current = cellKeys[slot];
+            if (current == key) {
+                return slot;
+            }
+            if (current == UNUSED_KEY) {
+                cellKeys[slot] = key;
+                cellHeads[slot] = EMPTY;
+                usedCells++;
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the cell table, dropping cells that have been emptied by moving handles
+     * and growing it only if the occupied cells alone would still crowd it.
+     */
+    private void rehash() {
+        long[] oldKeys = cellKeys;
+        int[] oldHeads = cellHeads;
+        int occupied = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != UNUSED_KEY && oldHeads[slot] != EMPTY) {
+                occupied++;
+            }
+        }
+        int capacity = MIN_TABLE_SIZE;
+        while (capacity < occupied * 4) {
+            capacity <<= 1;
+        }
+        allocateTable(capacity);
+        int mask = capacity - 1;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] == UNUSED_KEY || oldHeads[slot] == EMPTY) {
+                continue;
+            }
+            int target = hash(oldKeys[slot]);
+            while (cellKeys[target] != UNUSED_KEY) {
+                target = (target + 1) & mask;
+            }
+            cellKeys[target] = oldKeys[slot];
+            cellHeads[target] = oldHeads[slot];
+            usedCells++;
+        }
+    }
+
+    private void allocateTable(int capacity) {
+        cellKeys = new long[capacity];
+        cellHeads = new int[capacity];
+        Arrays.fill(cellKeys, UNUSED_KEY);
+        Arrays.fill(cellHeads, EMPTY);
+        usedCells = 0;
+    }
+
+    private void ensureHandleCapacity(int required) {
+        if (required <= present.length) {
+            return;
+        }
+        int capacity = Math.max(required, Math.max(16, present.length * 2));
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        handleCells = Arrays.copyOf(handleCells, capacity);
+        int oldLength = next.length;
+        next = Arrays.copyOf(next, capacity);
+        previous = Arrays.copyOf(previous, capacity);
+        Arrays.fill(next, oldLength, capacity, EMPTY);
+        Arrays.fill(previous, oldLength, capacity, EMPTY);
+        present = Arrays.copyOf(present, capacity);
+    }
+}
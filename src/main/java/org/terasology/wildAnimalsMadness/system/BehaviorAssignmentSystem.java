@@ -0,0 +1,225 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.assets.management.AssetManager;
+import org.terasology.entitySystem.Component;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.behavior.BehaviorComponent;
+import org.terasology.logic.behavior.GroupTagComponent;
+import org.terasology.logic.behavior.Interpreter;
+import org.terasology.logic.behavior.asset.BehaviorTree;
+import org.terasology.logic.behavior.core.Actor;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+import org.terasology.rendering.assets.material.Material;
+import org.terasology.rendering.logic.SkeletalMeshComponent;
+import org.terasology.utilities.Assets;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Assigns a behavior (and optionally a skin and an extra component) to many entities at once.
+ * The behavior tree and the material are resolved once per batch, and each entity gets at
+ * most one write per component. Batches larger than {@link #entitiesPerFrame} are spread over
+ * several frames; the first chunk is applied immediately.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(BehaviorAssignmentSystem.class)
+public class BehaviorAssignmentSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    private static final Logger logger = LoggerFactory.getLogger(BehaviorAssignmentSystem.class);
+
+    @In
+    private AssetManager assetManager;
+    @In
+    private MadnessMetrics metrics;
+
+    private final Deque<Batch> batches = new ArrayDeque<>();
+
+    /**
+     * Maximum number of entities assigned per frame.
+     */
+    private int entitiesPerFrame = 250;
+
+    private int saves;
+
+    @Command(shortDescription = "Sets how many entities receive a group behavior per frame.")
+    public String assignmentRate(@CommandParam("entities") int entities) {
+        entitiesPerFrame = Math.max(1, entities);
+        return "Group behavior assignment: " + entitiesPerFrame + " entities per frame.";
+    }
+
+    /**
+     * Assigns a behavior to the given entities, backing up their current behavior in their
+     * GroupTagComponent first.
+     *
+     * @param entities the entities to assign the behavior to; copied before returning
+     * @param behavior the behavior tree URN
+     * @param skin the material to apply, if any
+     * @param componentType the type of the extra component, if any
+     * @param extraComponent creates a component to add to every entity lacking one of {@code componentType}
+     * @param onComplete receives the number of entities assigned once the batch is done
+     */
+    public <T extends Component> void assign(Collection<EntityRef> entities, String behavior, @Nullable String skin,
+                                             @Nullable Class<T> componentType, @Nullable Supplier<? extends T> extraComponent,
+                                             @Nullable Consumer<Integer> onComplete) {
+        BehaviorTree tree = assetManager.getAsset(behavior, BehaviorTree.class).orElse(null);
+        if (null == tree) {
+            logger.warn("Behavior " + behavior + " could not be resolved.");
+            if (null != onComplete) {
+                onComplete.accept(0);
+            }
+            return;
+        }
+        Material material = null;
+        if (null != skin) {
+            material = Assets.getMaterial(skin).orElse(null);
+        }
+
+        long start = metrics.start();
+        Batch batch = new Batch(new ArrayList<>(entities), tree, material, componentType, extraComponent, onComplete);
+        if (process(batch, entitiesPerFrame)) {
+            batches.add(batch);
+        }
+        metrics.stop(MadnessMetrics.Timer.ASSIGNMENT_SYSTEM, start);
+    }
+
+    @Override
+    public void update(float delta) {
+        if (batches.isEmpty()) {
+            return;
+        }
+        long start = metrics.start();
+        int remaining = entitiesPerFrame;
+        while (remaining > 0 && !batches.isEmpty()) {
+            Batch batch = batches.peek();
+            int before = batch.cursor;
+            if (!process(batch, remaining)) {
+                batches.poll();
+            }
+            remaining -= batch.cursor - before;
+        }
+        metrics.stop(MadnessMetrics.Timer.ASSIGNMENT_SYSTEM, start);
+    }
+
+    /**
+     * Assigns the behavior to at most {@code limit} entities of the batch.
+     *
+     * @return true if the batch still has entities left
+     */
+    private boolean process(Batch batch, int limit) {
+        saves = 0;
+        int start = batch.cursor;
+        int end = Math.min(batch.entities.size(), batch.cursor + limit);
+        for (; batch.cursor < end; batch.cursor++) {
+            EntityRef entityRef = batch.entities.get(batch.cursor);
+            if (entityRef.exists()) {
+                assignToEntity(entityRef, batch);
+                batch.assigned++;
+            }
+        }
+        metrics.count(MadnessMetrics.Counter.SAVES, saves);
+        metrics.count(MadnessMetrics.Counter.ENTITIES, batch.cursor - start);
+        if (batch.cursor < batch.entities.size()) {
+            return true;
+        }
+        if (null != batch.onComplete) {
+            batch.onComplete.accept(batch.assigned);
+        }
+        return false;
+    }
+
+    private void assignToEntity(EntityRef entityRef, Batch batch) {
+        if (null != batch.componentType && null != batch.extraComponent && !entityRef.hasComponent(batch.componentType)) {
+            entityRef.addComponent(batch.extraComponent.get());
+        }
+
+        if (null != batch.material) {
+            SkeletalMeshComponent skeletalComponent = entityRef.getComponent(SkeletalMeshComponent.class);
+            if (null != skeletalComponent && skeletalComponent.material != batch.material) {
+                skeletalComponent.material = batch.material;
+                entityRef.saveComponent(skeletalComponent);
+                saves++;
+            }
+        }
+
+        BehaviorComponent behaviorComponent = entityRef.getComponent(BehaviorComponent.class);
+        boolean hasBehavior = null != behaviorComponent;
+        if (!hasBehavior) {
+            behaviorComponent = new BehaviorComponent();
+        } else {
+            GroupTagComponent groupTagComponent = entityRef.getComponent(GroupTagComponent.class);
+            if (null != groupTagComponent && null != behaviorComponent.interpreter) {
+                // The entity gets a new interpreter below, so the running one is moved into the backup instead of copied.
+                groupTagComponent.backupBT = behaviorComponent.tree;
+                groupTagComponent.backupRunningState = behaviorComponent.interpreter;
+                entityRef.saveComponent(groupTagComponent);
+                saves++;
+            }
+        }
+
+        behaviorComponent.tree = batch.tree;
+        behaviorComponent.interpreter = new Interpreter(new Actor(entityRef));
+        behaviorComponent.interpreter.setTree(batch.tree);
+        if (hasBehavior) {
+            entityRef.saveComponent(behaviorComponent);
+            saves++;
+        } else {
+            entityRef.addComponent(behaviorComponent);
+        }
+    }
+
+    /**
+     * A group assignment with its resolved assets and progress.
+     */
+    private static final class Batch {
+        private final List<EntityRef> entities;
+        private final BehaviorTree tree;
+        private final Material material;
+        private final Class<? extends Component> componentType;
+        private final Supplier<? extends Component> extraComponent;
+        private final Consumer<Integer> onComplete;
+        private int cursor;
+        private int assigned;
+
+        private Batch(List<EntityRef> entities, BehaviorTree tree, @Nullable Material material,
+                      @Nullable Class<? extends Component> componentType, @Nullable Supplier<? extends Component> extraComponent,
+                      @Nullable Consumer<Integer> onComplete) {
+            this.entities = entities;
+            this.tree = tree;
+            this.material = material;
+            this.componentType = componentType;
+            this.extraComponent = extraComponent;
+            this.onComplete = onComplete;
+        }
+    }
+}
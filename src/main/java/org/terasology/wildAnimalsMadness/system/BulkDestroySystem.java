@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.Component;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Destroys large numbers of entities over several frames, at most {@link #entitiesPerFrame}
+ * per frame. Each chunk is removed from the group index and from the member lists of its
+ * hives in one pass before being destroyed, so hives are updated once per chunk rather than
+ * once per destroyed member.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(BulkDestroySystem.class)
+public class BulkDestroySystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkDestroySystem.class);
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private GroupIndexSystem groupIndex;
+    @In
+    private MadnessMetrics metrics;
+
+    private final Deque<Job> jobs = new ArrayDeque<>();
+    private final List<EntityRef> chunk = new ArrayList<>();
+
+    /**
+     * Maximum number of entities destroyed per frame.
+     */
+    private int entitiesPerFrame = 500;
+
+    @Command(shortDescription = "Sets how many entities are destroyed per frame by nuke and terminate.")
+    public String destroyRate(@CommandParam("entities") int entities) {
+        entitiesPerFrame = Math.max(1, entities);
+        return "Bulk destroy: " + entitiesPerFrame + " entities per frame.";
+    }
+
+    @Command(shortDescription = "Shows the progress of nuke and terminate.")
+    public String destroyProgress() {
+        if (jobs.isEmpty()) {
+            return "Nothing is being destroyed.";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Job job : jobs) {
+            builder.append(job.name).append(": ").append(job.destroyed).append(" of ")
+                    .append(job.destroyed + job.getPendingCount()).append(" entities destroyed\n");
+        }
+        return builder.toString();
+    }
+
+    @Command(shortDescription = "Stops nuke and terminate. Entities already destroyed stay destroyed.")
+    public String destroyCancel() {
+        int remaining = getPendingCount();
+        jobs.clear();
+        return "Bulk destroy cancelled, " + remaining + " entities spared.";
+    }
+
+    /**
+     * Destroys every entity having any of the given components, in that order of components.
+     * Entities created afterwards are not affected.
+     *
+     * @param name the name shown in the progress report
+     * @return the number of entities that will be destroyed
+     */
+    @SafeVarargs
+    public final int destroyAll(String name, Class<? extends Component>... componentClasses) {
+        Set<EntityRef> entities = new LinkedHashSet<>();
+        for (Class<? extends Component> componentClass : componentClasses) {
+            for (EntityRef entity : entityManager.getEntitiesWith(componentClass)) {
+                entities.add(entity);
+            }
+        }
+        if (!entities.isEmpty()) {
+            jobs.add(new Job(name, new ArrayList<>(entities)));
+        }
+        return entities.size();
+    }
+
+    /**
+     * @return the number of entities still waiting to be destroyed; entities destroyed by
+     * something else in the meantime are not counted
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Job job : jobs) {
+            pending += job.getPendingCount();
+        }
+        return pending;
+    }
+
+    @Override
+    public void update(float delta) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        long start = metrics.start();
+        int remaining = entitiesPerFrame;
+        while (remaining > 0 && !jobs.isEmpty()) {
+            Job job = jobs.peek();
+            chunk.clear();
+            int end = Math.min(job.entities.size(), job.cursor + remaining);
+            for (; job.cursor < end; job.cursor++) {
+                EntityRef entity = job.entities.get(job.cursor);
+                if (entity.exists()) {
+                    chunk.add(entity);
+                }
+            }
+            groupIndex.removeEntities(chunk);
+            int destroyed = 0;
+            for (EntityRef entity : chunk) {
+                // Destroying an entity may destroy the entities it owns, which can be later in the chunk.
+                if (entity.exists()) {
+                    entity.destroy();
+                    destroyed++;
+                }
+            }
+            remaining -= destroyed;
+            job.destroyed += destroyed;
+            metrics.count(MadnessMetrics.Counter.ENTITIES, destroyed);
+            if (job.cursor >= job.entities.size()) {
+                logger.info(job.name + ": " + job.destroyed + " entities destroyed.");
+                jobs.poll();
+            }
+        }
+        chunk.clear();
+        metrics.stop(MadnessMetrics.Timer.BULK_DESTROY, start);
+    }
+
+    /**
+     * A list of entities to destroy and the progress made on it.
+     */
+    private static final class Job {
+        private final String name;
+        private final List<EntityRef> entities;
+        private int cursor;
+        private int destroyed;
+
+        private Job(String name, List<EntityRef> entities) {
+            this.name = name;
+            this.entities = entities;
+        }
+
+        private int getPendingCount() {
+            int pending = 0;
+            for (int i = cursor; i < entities.size(); i++) {
+                if (entities.get(i).exists()) {
+                    pending++;
+                }
+            }
+            return pending;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.wildAnimalsMadness.components.FlockComponent;
+import org.terasology.wildAnimalsMadness.spatial.SpatialHashGrid;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * A single flock: its members, their spatial index and the steering computed for them.
+ * Members are identified by slot, which indexes both the {@link FlockSnapshot} buffers
+ * and the spatial grid. Members and positions are only touched on the main thread;
+ * {@link #call()} steers a range of slots from the captured snapshot and may run on a
+ * worker thread. Ranges of the same flock are never steered concurrently.
+ * <p>
+ * Members in topological mode keep a list of their nearest neighbours between ticks. The
+ * list is refreshed from the previous neighbours and their own neighbours, which caps the
+ * per-member cost at k + k&sup2; candidates however dense the flock gets; a staggered grid
+ * query now and then lets members discover newcomers.
+ * <p>
+ * Members far from every player are not steered by their neighbours: they all follow the
+ * average heading of the far members of the flock, so the distant part of the flock moves
+ * as a single blob at a cost of O(1) per member.
+ */
+class Flock implements Callable<Flock> {
+
+    private static final int MAX_TOPOLOGICAL_NEIGHBOURS = 32;
+    private static final int TOPOLOGICAL_REFRESH_INTERVAL = 16;
+    private static final float TOPOLOGICAL_REFRESH_MARGIN = 1.5f;
+    /**
+     * Smallest grid cell size, as a fraction of the largest search radius, so that a query
+     * never visits more than 9&sup3; cells.
+     */
+    private static final float MIN_CELL_FRACTION = 0.25f;
+
+    private final String id;
+    private final SpatialHashGrid grid;
+    private final FlockSnapshot snapshot = new FlockSnapshot();
+    private final Map<EntityRef, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int slotCount;
+    private int[] neighbours = new int[16];
+
+    private float maxSearchRadius;
+    private int computeCursor;
+    private int rangeStart;
+    private int rangeEnd;
+
+    private int generation;
+    private int topologicalStride;
+    private int[] nearest = new int[0];
+    private int[] nearestCount = new int[0];
+    private final int[] bestSlots = new int[MAX_TOPOLOGICAL_NEIGHBOURS];
+    private final float[] bestDistances = new float[MAX_TOPOLOGICAL_NEIGHBOURS];
+
+    private float lodNearDistance = -1;
+    private float lodFarDistance = -1;
+    private final int[] lodCounts = new int[3];
+    private float farHeadingX;
+    private float farHeadingY;
+    private float farHeadingZ;
+    private float farSpeed;
+
+    Flock(String id, float cellSize) {
+        this.id = id;
+        this.grid = new SpatialHashGrid(cellSize);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * @return one past the highest slot in use; slots below it may be empty
+     */
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    FlockSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Writes the interpolated steering target of a member into {@code out}.
+     *
+     * @return false if the member has no target yet
+     */
+    boolean getTarget(EntityRef member, float time, Vector3f out) {
+        Integer slot = slots.get(member);
+        if (slot == null || snapshot.targetTime[slot] == FlockSnapshot.NO_TARGET) {
+            return false;
+        }
+        float alpha = snapshot.interpolation(slot, time);
+        out.set(snapshot.previousTargetX[slot] + (snapshot.targetX[slot] - snapshot.previousTargetX[slot]) * alpha,
+                snapshot.previousTargetY[slot] + (snapshot.targetY[slot] - snapshot.previousTargetY[slot]) * alpha,
+                snapshot.previousTargetZ[slot] + (snapshot.targetZ[slot] - snapshot.previousTargetZ[slot]) * alpha);
+        return true;
+    }
+
+    /**
+     * @return the level of detail the member was last captured with
+     */
+    byte getLevelOfDetail(EntityRef member) {
+        Integer slot = slots.get(member);
+        return slot == null ? FlockSnapshot.LOD_FULL : snapshot.lod[slot];
+    }
+
+    /**
+     * @return how many members were captured with the given level of detail when the last
+     * steering pass began
+     */
+    int getLevelOfDetailCount(byte lod) {
+        return lodCounts[lod];
+    }
+
+    /**
+     * Overrides the level of detail distances of the members' components for this flock.
+     * Negative values restore the component values.
+     */
+    void setLevelOfDetailDistances(float nearDistance, float farDistance) {
+        lodNearDistance = nearDistance;
+        lodFarDistance = farDistance;
+    }
+
+    /**
+     * @param distanceSquared the squared distance between the member and the nearest player
+     * @return the level of detail of a member at that distance
+     */
+    byte levelOfDetail(float distanceSquared, FlockComponent flockComponent) {
+        float farDistance = lodFarDistance >= 0 ? lodFarDistance : flockComponent.lodFarDistance;
+        if (farDistance <= 0) {
+            return FlockSnapshot.LOD_FULL;
+        }
+        float nearDistance = lodNearDistance >= 0 ? lodNearDistance : flockComponent.lodNearDistance;
+        if (distanceSquared < nearDistance * nearDistance) {
+            return FlockSnapshot.LOD_FULL;
+        }
+        return distanceSquared < farDistance * farDistance ? FlockSnapshot.LOD_REDUCED : FlockSnapshot.LOD_FAR;
+    }
+
+    void add(EntityRef member) {
+        if (slots.containsKey(member)) {
+            return;
+        }
+        int slot = freeSlots.isEmpty() ? slotCount++ : freeSlots.pop();
+        snapshot.assign(slot, member);
+        slots.put(member, slot);
+    }
+
+    /**
+     * Moves a member into another flock, keeping its steering target so that it keeps moving
+     * until the other flock steers it. Main thread only, while neither flock is computing.
+     */
+    void transfer(EntityRef member, Flock target) {
+        target.add(member);
+        Integer slot = slots.get(member);
+        if (slot == null) {
+            return;
+        }
+        int targetSlot = target.slots.get(member);
+        FlockSnapshot from = snapshot;
+        FlockSnapshot to = target.snapshot;
+        to.targetX[targetSlot] = from.targetX[slot];
+        to.targetY[targetSlot] = from.targetY[slot];
+        to.targetZ[targetSlot] = from.targetZ[slot];
+        to.previousTargetX[targetSlot] = from.previousTargetX[slot];
+        to.previousTargetY[targetSlot] = from.previousTargetY[slot];
+        to.previousTargetZ[targetSlot] = from.previousTargetZ[slot];
+        to.targetTime[targetSlot] = from.targetTime[slot];
+        to.targetPeriod[targetSlot] = from.targetPeriod[slot];
+        to.lod[targetSlot] = from.lod[slot];
+        remove(member);
+    }
+
+    void remove(EntityRef member) {
+        Integer slot = slots.remove(member);
+        if (slot != null) {
+            grid.remove(slot);
+            snapshot.release(slot);
+            if (slot < nearestCount.length) {
+                nearestCount[slot] = 0;
+            }
+            freeSlots.push(slot);
+        }
+    }
+
+    /**
+     * Records the current state and steering settings of the member in the given slot and
+     * marks it as due for steering. Main thread only.
+     *
+     * @param lod the level of detail of the member
+     * @param nextTick the simulation tick on which the member is due again
+     */
+    void capture(int slot, float posX, float posY, float posZ, float dirX, float dirY, float dirZ,
+                 FlockComponent flockComponent, byte lod, int nextTick) {
+        snapshot.positionX[slot] = posX;
+        snapshot.positionY[slot] = posY;
+        snapshot.positionZ[slot] = posZ;
+        snapshot.directionX[slot] = dirX;
+        snapshot.directionY[slot] = dirY;
+        snapshot.directionZ[slot] = dirZ;
+        // The component only provides the initial speed; afterwards members keep the one their neighbours gave them.
+        snapshot.speed[slot] = snapshot.targetTime[slot] == FlockSnapshot.NO_TARGET ? flockComponent.speed : snapshot.resultSpeed[slot];
+        snapshot.searchRadius[slot] = flockComponent.searchRadius;
+        snapshot.separationDistance[slot] = flockComponent.separationDistance;
+        snapshot.separationWeight[slot] = flockComponent.separationWeight;
+        snapshot.alignmentWeight[slot] = flockComponent.alignmentWeight;
+        snapshot.cohesionWeight[slot] = flockComponent.cohesionWeight;
+        snapshot.topological[slot] = flockComponent.topological;
+        snapshot.neighbourCount[slot] = flockComponent.neighbourCount;
+        snapshot.lod[slot] = lod;
+        snapshot.nextTick[slot] = nextTick;
+        snapshot.due[slot] = true;
+        snapshot.hasResult[slot] = false;
+        grid.put(slot, posX, posY, posZ);
+    }
+
+    /**
+     * Leaves the member in the given slot out of this tick; its last captured state is still
+     * seen by its neighbours. Main thread only.
+     */
+    void skip(int slot) {
+        snapshot.due[slot] = false;
+        snapshot.hasResult[slot] = false;
+    }
+
+    /**
+     * Prepares a steering pass over every captured member. Main thread only.
+     */
+    void beginCompute(float cellSize) {
+        maxSearchRadius = 0;
+        int stride = 0;
+        Arrays.fill(lodCounts, 0);
+        float headingX = 0;
+        float headingY = 0;
+        float headingZ = 0;
+        float speedSum = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (grid.contains(slot)) {
+                maxSearchRadius = Math.max(maxSearchRadius, snapshot.searchRadius[slot]);
+                if (snapshot.topological[slot]) {
+                    stride = Math.max(stride, Math.min(snapshot.neighbourCount[slot], MAX_TOPOLOGICAL_NEIGHBOURS));
+                }
+                lodCounts[snapshot.lod[slot]]++;
+                if (snapshot.lod[slot] == FlockSnapshot.LOD_FAR) {
+                    headingX += snapshot.directionX[slot];
+                    headingY += snapshot.directionY[slot];
+                    headingZ += snapshot.directionZ[slot];
+                    speedSum += snapshot.speed[slot];
+                }
+            }
+        }
+        int farCount = lodCounts[FlockSnapshot.LOD_FAR];
+        if (farCount > 0) {
+            farHeadingX = headingX / farCount;
+            farHeadingY = headingY / farCount;
+            farHeadingZ = headingZ / farCount;
+            farSpeed = speedSum / farCount;
+        }
+        prepareTopologicalLists(stride);
+        if (cellSize > 0) {
+            grid.setCellSize(Math.max(cellSize, maxSearchRadius * MIN_CELL_FRACTION));
+        } else if (maxSearchRadius > 0) {
+            grid.setCellSize(maxSearchRadius);
+        }
+        if (neighbours.length < snapshot.capacity()) {
+            neighbours = new int[snapshot.capacity()];
+        }
+        computeCursor = 0;
+        generation++;
+    }
+
+    private void prepareTopologicalLists(int stride) {
+        if (stride != topologicalStride) {
+            topologicalStride = stride;
+            nearest = new int[snapshot.capacity() * stride];
+            nearestCount = new int[snapshot.capacity()];
+        } else if (nearestCount.length < snapshot.capacity()) {
+            nearest = Arrays.copyOf(nearest, snapshot.capacity() * stride);
+            nearestCount = Arrays.copyOf(nearestCount, snapshot.capacity());
+        }
+    }
+
+    boolean hasComputeWork() {
+        return computeCursor < slotCount;
+    }
+
+    /**
+     * Selects the next range of at most {@code maxSlots} slots for {@link #call()}. Main thread only.
+     */
+    void nextComputeRange(int maxSlots) {
+        rangeStart = computeCursor;
+        rangeEnd = Math.min(slotCount, computeCursor + maxSlots);
+        computeCursor = rangeEnd;
+    }
+
+    /**
+     * Steers every due member in the current range with separation, alignment and cohesion.
+     * All three are accumulated in a single pass over the neighbours found in the spatial
+     * grid, so the cost is proportional to members times neighbours. Does not allocate.
+     */
+    @Override
+    public Flock call() {
+        for (int slot = rangeStart; slot < rangeEnd; slot++) {
+            if (snapshot.entities[slot] != null && snapshot.due[slot] && grid.contains(slot)) {
+                if (snapshot.lod[slot] == FlockSnapshot.LOD_FAR) {
+                    steerFar(slot);
+                } else {
+                    steer(slot);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Moves a far member along the average heading of the far members, keeping its place
+     * in the blob.
+     */
+    private void steerFar(int slot) {
+        float alignmentWeight = snapshot.alignmentWeight[slot];
+        snapshot.resultX[slot] = snapshot.positionX[slot] + alignmentWeight * farHeadingX;
+        snapshot.resultY[slot] = snapshot.positionY[slot] + alignmentWeight * farHeadingY;
+        snapshot.resultZ[slot] = snapshot.positionZ[slot] + alignmentWeight * farHeadingZ;
+        snapshot.resultSpeed[slot] = farSpeed;
+        snapshot.hasResult[slot] = true;
+    }
+
+    private void steer(int slot) {
+        float[] positionX = snapshot.positionX;
+        float[] positionY = snapshot.positionY;
+        float[] positionZ = snapshot.positionZ;
+        float posX = positionX[slot];
+        float posY = positionY[slot];
+        float posZ = positionZ[slot];
+        float separationDistance = snapshot.separationDistance[slot];
+        float separationDistanceSquared = separationDistance * separationDistance;
+
+        float sumX = 0;
+        float sumY = 0;
+        float sumZ = 0;
+        float headingX = 0;
+        float headingY = 0;
+        float headingZ = 0;
+        float separationX = 0;
+        float separationY = 0;
+        float separationZ = 0;
+        float speedSum = 0;
+        int count = 0;
+
+        int neighbourCount = snapshot.topological[slot] && topologicalStride > 0
+                ? findNearestNeighbours(slot)
+                : grid.query(posX, posY, posZ, snapshot.searchRadius[slot], neighbours);
+        for (int i = 0; i < neighbourCount; i++) {
+            int other = neighbours[i];
+            if (other == slot) {
+                continue;
+            }
+            float otherX = positionX[other];
+            float otherY = positionY[other];
+            float otherZ = positionZ[other];
+            sumX += otherX;
+            sumY += otherY;
+            sumZ += otherZ;
+            headingX += snapshot.directionX[other];
+            headingY += snapshot.directionY[other];
+            headingZ += snapshot.directionZ[other];
+            speedSum += snapshot.speed[other];
+            count++;
+
+            float offsetX = posX - otherX;
+            float offsetY = posY - otherY;
+            float offsetZ = posZ - otherZ;
+            float distanceSquared = offsetX * offsetX + offsetY * offsetY + offsetZ * offsetZ;
+            if (distanceSquared < separationDistanceSquared && distanceSquared > 0) {
+                separationX += offsetX / distanceSquared;
+                separationY += offsetY / distanceSquared;
+                separationZ += offsetZ / distanceSquared;
+            }
+        }
+
+        float centreX = posX;
+        float centreY = posY;
+        float centreZ = posZ;
+        float speed = snapshot.speed[slot];
+        if (count > 0) {
+            centreX = sumX / count;
+            centreY = sumY / count;
+            centreZ = sumZ / count;
+            headingX /= count;
+            headingY /= count;
+            headingZ /= count;
+            speed = speedSum / count;
+        }
+
+        float cohesionWeight = snapshot.cohesionWeight[slot];
+        float alignmentWeight = snapshot.alignmentWeight[slot];
+        float separationWeight = snapshot.separationWeight[slot];
+        snapshot.resultX[slot] = posX + cohesionWeight * (centreX - posX) + alignmentWeight * headingX + separationWeight * separationX;
+        snapshot.resultY[slot] = posY + cohesionWeight * (centreY - posY) + alignmentWeight * headingY + separationWeight * separationY;
+        snapshot.resultZ[slot] = posZ + cohesionWeight * (centreZ - posZ) + alignmentWeight * headingZ + separationWeight * separationZ;
+        snapshot.resultSpeed[slot] = speed;
+        snapshot.hasResult[slot] = true;
+    }
+
+    /**
+     * Refreshes the nearest-neighbour list of a member and copies it into {@link #neighbours}.
+     *
+     * @return the number of neighbours found
+     */
+    private int findNearestNeighbours(int slot) {
+        int k = Math.min(snapshot.neighbourCount[slot], topologicalStride);
+        if (k <= 0) {
+            return 0;
+        }
+        int base = slot * topologicalStride;
+        int known = nearestCount[slot];
+        int found = 0;
+
+        if (known == 0 || (generation + slot) % TOPOLOGICAL_REFRESH_INTERVAL == 0) {
+            float radius = snapshot.searchRadius[slot];
+            if (known == k && isCaptured(nearest[base + k - 1])) {
+                float farthest = (float) Math.sqrt(distanceSquared(slot, nearest[base + k - 1]));
+                radius = Math.min(radius, farthest * TOPOLOGICAL_REFRESH_MARGIN);
+            }
+            int count = grid.query(snapshot.positionX[slot], snapshot.positionY[slot], snapshot.positionZ[slot],
+                    radius, neighbours);
+            for (int i = 0; i < count; i++) {
+                found = offer(slot, neighbours[i], found, k);
+            }
+        }
+        for (int i = 0; i < known; i++) {
+            int other = nearest[base + i];
+            found = offer(slot, other, found, k);
+            if (isCaptured(other)) {
+                int otherBase = other * topologicalStride;
+                for (int j = 0; j < nearestCount[other]; j++) {
+                    found = offer(slot, nearest[otherBase + j], found, k);
+                }
+            }
+        }
+
+        System.arraycopy(bestSlots, 0, nearest, base, found);
+        System.arraycopy(bestSlots, 0, neighbours, 0, found);
+        nearestCount[slot] = found;
+        return found;
+    }
+
+    /**
+     * Offers a candidate to the sorted best list of a member, keeping at most {@code k} entries.
+     *
+     * @return the new length of the best list
+     */
+    private int offer(int slot, int candidate, int found, int k) {
+        if (candidate == slot || !isCaptured(candidate)) {
+            return found;
+        }
+        for (int i = 0; i < found; i++) {
+            if (bestSlots[i] == candidate) {
+                return found;
+            }
+        }
+        float distance = distanceSquared(slot, candidate);
+        if (found == k && distance >= bestDistances[k - 1]) {
+            return found;
+        }
+        int position = found < k ? found : k - 1;
+        while (position > 0 && bestDistances[position - 1] > distance) {
+            bestSlots[position] = bestSlots[position - 1];
+            bestDistances[position] = bestDistances[position - 1];
+            position--;
+        }
+        bestSlots[position] = candidate;
+        bestDistances[position] = distance;
+        return found < k ? found + 1 : found;
+    }
+
+    private boolean isCaptured(int slot) {
+        return slot < slotCount && snapshot.entities[slot] != null && grid.contains(slot);
+    }
+
+    private float distanceSquared(int slot, int other) {
+        float dx = snapshot.positionX[slot] - snapshot.positionX[other];
+        float dy = snapshot.positionY[slot] - snapshot.positionY[other];
+        float dz = snapshot.positionZ[slot] - snapshot.positionZ[other];
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.wildAnimalsMadness.spatial.SpatialHashGrid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a herd into flocks of members that are connected through neighbours within the
+ * search radius. The herd keeps a graph of neighbour links, and clusters are its connected
+ * components. Only the members that joined or moved by more than a fraction of the radius
+ * since their links were last checked are re-checked, against their own neighbours:
+ * <ul>
+ * <li>a new link between two clusters merges them, relabelling the smaller one;</li>
+ * <li>the members at the ends of a lost link, or around a member that left, are checked to be
+ * still connected: two searches are expanded in turn from a pair of them, and stop as soon as
+ * they meet, usually within a few hops, or when one of them runs out of members, which are
+ * then split off.</li>
+ * </ul>
+ * A member that stays within the tolerance costs nothing, and the cost of a moved member
+ * depends on its neighbourhood rather than on the size of its cluster. Links are checked
+ * against current positions, so clusters may lag by up to the tolerance.
+ * <p>
+ * Cluster ids are kept stable: a merged cluster keeps the id of its larger part, and the
+ * part cut off from a cluster gets a new id.
+ * <p>
+ * Main thread only.
+ */
+final class FlockClusters {
+
+    /**
+     * Distance a member may move, as a fraction of the search radius, before its links are checked again.
+     */
+    private static final float MOVE_TOLERANCE = 0.25f;
+    private static final int NONE = -1;
+    private static final int INITIAL_LINKS = 8;
+
+    private final String herdId;
+    private final float radius;
+    private final float toleranceSquared;
+    private final SpatialHashGrid grid;
+
+    private final Map<EntityRef, Integer> handles = new HashMap<>();
+    private int handleCount;
+    private int[] freeHandles = new int[0];
+    private int freeHandleCount;
+    private int[] releasedHandles = new int[0];
+    private int releasedHandleCount;
+
+    private EntityRef[] members = new EntityRef[0];
+    private int[] cluster = new int[0];
+    private int[] nextInCluster = new int[0];
+    private int[] previousInCluster = new int[0];
+    private float[] checkedX = new float[0];
+    private float[] checkedY = new float[0];
+    private float[] checkedZ = new float[0];
+    private int[][] links = new int[0][];
+    private int[] linkCount = new int[0];
+    private boolean[] queued = new boolean[0];
+    private int[] markA = new int[0];
+    private int[] markB = new int[0];
+    private int[] changedIn = new int[0];
+    private int[] moved = new int[0];
+    private int movedCount;
+    private int[] neighbours = new int[0];
+    private int[] searchA = new int[0];
+    private int[] searchB = new int[0];
+
+    private int[] clusterHead = new int[0];
+    private int[] clusterSize = new int[0];
+    private int clusterIdCount;
+    private int liveClusters;
+    private int[] freeClusterIds = new int[0];
+    private int freeClusterIdCount;
+    private int[] releasedClusterIds = new int[0];
+    private int releasedClusterIdCount;
+
+    /**
+     * Members that lost a link, to be checked for a split.
+     */
+    private int[] endpoints = new int[0];
+    private int endpointCount;
+    /**
+     * Per cluster id, the endpoint all the other endpoints of the cluster are checked against.
+     */
+    private int[] representative = new int[0];
+    private int[] representativeIn = new int[0];
+
+    private int stamp;
+    private int generation;
+    private final List<EntityRef> changed = new ArrayList<>();
+
+    FlockClusters(String herdId, float radius) {
+        this.herdId = herdId;
+        this.radius = radius;
+        this.toleranceSquared = radius * MOVE_TOLERANCE * radius * MOVE_TOLERANCE;
+        this.grid = new SpatialHashGrid(radius);
+    }
+
+    String getId() {
+        return herdId;
+    }
+
+    float getRadius() {
+        return radius;
+    }
+
+    int size() {
+        return handles.size();
+    }
+
+    int getClusterCount() {
+        return liveClusters;
+    }
+
+    /**
+     * @return the id of the flock the member currently belongs to, or null if it is not in the herd
+     */
+    String getFlockId(EntityRef member) {
+        Integer handle = handles.get(member);
+        return handle == null ? null : flockId(cluster[handle]);
+    }
+
+    /**
+     * Adds a member in a cluster of its own, until its position is known.
+     *
+     * @return the id of the flock of the member
+     */
+    String add(EntityRef member) {
+        Integer existing = handles.get(member);
+        if (existing != null) {
+            return flockId(cluster[existing]);
+        }
+        int handle = freeHandleCount > 0 ? freeHandles[--freeHandleCount] : handleCount++;
+        ensureCapacity(handleCount);
+        handles.put(member, handle);
+        members[handle] = member;
+        linkCount[handle] = 0;
+        int clusterId = newCluster();
+        addToCluster(handle, clusterId);
+        return flockId(clusterId);
+    }
+
+    void remove(EntityRef member) {
+        Integer handle = handles.remove(member);
+        if (handle == null) {
+            return;
+        }
+        int[] memberLinks = links[handle];
+        // Its pending checks are covered by its neighbours, which are checked instead.
+        for (int i = 0; i < endpointCount; i++) {
+            if (endpoints[i] == handle) {
+                endpoints[i] = NONE;
+            }
+        }
+        for (int i = 0; i < linkCount[handle]; i++) {
+            removeLink(memberLinks[i], handle);
+            addEndpoint(memberLinks[i]);
+        }
+        linkCount[handle] = 0;
+        removeFromCluster(handle);
+        grid.remove(handle);
+        members[handle] = null;
+        // Reused only after the next reclustering, so that pending checks never see another member.
+        releasedHandles = grow(releasedHandles, releasedHandleCount + 1);
+        releasedHandles[releasedHandleCount++] = handle;
+    }
+
+    /**
+     * Records the position of a member. Its links are checked on the next reclustering if
+     * the member was never placed, or has moved far enough since they were last checked.
+     */
+    void update(EntityRef member, float posX, float posY, float posZ) {
+        Integer handle = handles.get(member);
+        if (handle == null) {
+            return;
+        }
+        boolean placed = grid.contains(handle);
+        grid.put(handle, posX, posY, posZ);
+        float dx = posX - checkedX[handle];
+        float dy = posY - checkedY[handle];
+        float dz = posZ - checkedZ[handle];
+        if ((!placed || dx * dx + dy * dy + dz * dz > toleranceSquared) && !queued[handle]) {
+            queued[handle] = true;
+            moved[movedCount++] = handle;
+        }
+    }
+
+    /**
+     * Checks the links of the members that moved, and splits the clusters that lost a link
+     * they depended on.
+     *
+     * @return the members whose flock changed; the list is reused by the next call
+     */
+    List<EntityRef> recluster() {
+        changed.clear();
+        if (movedCount > 0 || endpointCount > 0) {
+            generation++;
+            for (int i = 0; i < movedCount; i++) {
+                int handle = moved[i];
+                queued[handle] = false;
+                if (members[handle] != null && grid.contains(handle)) {
+                    checkLinks(handle);
+                }
+            }
+            movedCount = 0;
+            for (int i = 0; i < endpointCount; i++) {
+                int handle = endpoints[i];
+                if (handle != NONE && members[handle] != null) {
+                    checkConnected(handle);
+                }
+            }
+            endpointCount = 0;
+        }
+        recycle();
+        return changed;
+    }
+
+    /**
+     * Compares the neighbours of a member with its links: lost links are recorded as
+     * possible splits, and new links merge the clusters they connect.
+     */
+    private void checkLinks(int handle) {
+        checkedX[handle] = grid.getX(handle);
+        checkedY[handle] = grid.getY(handle);
+        checkedZ[handle] = grid.getZ(handle);
+        int count = grid.query(checkedX[handle], checkedY[handle], checkedZ[handle], radius, neighbours);
+
+        int current = ++stamp;
+        int[] memberLinks = links[handle];
+        for (int i = 0; i < linkCount[handle]; i++) {
+            markB[memberLinks[i]] = current;
+        }
+        for (int i = 0; i < count; i++) {
+            markA[neighbours[i]] = current;
+        }
+        for (int i = linkCount[handle] - 1; i >= 0; i--) {
+            int other = memberLinks[i];
+            if (markA[other] != current) {
+                memberLinks[i] = memberLinks[--linkCount[handle]];
+                removeLink(other, handle);
+                addEndpoint(handle);
+                addEndpoint(other);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int other = neighbours[i];
+            if (other != handle && markB[other] != current) {
+                addLink(handle, other);
+                addLink(other, handle);
+                if (cluster[other] != cluster[handle]) {
+                    merge(cluster[handle], cluster[other]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a member that lost a link is still connected to the representative of its
+     * cluster, the first such member checked. Every part a cluster falls apart into holds one of
+     * them, and a split moves a whole part, so once they are all checked the clusters are exact.
+     */
+    private void checkConnected(int handle) {
+        int clusterId = cluster[handle];
+        if (representativeIn[clusterId] != generation) {
+            representativeIn[clusterId] = generation;
+            representative[clusterId] = handle;
+            return;
+        }
+        int other = representative[clusterId];
+        if (other == handle) {
+            return;
+        }
+        int splitFrom = separate(other, handle);
+        if (splitFrom != NONE) {
+            // Both parts need a representative: the one that was split off and the one that kept the id.
+            int newId = cluster[splitFrom];
+            representativeIn[newId] = generation;
+            representative[newId] = splitFrom;
+            representative[clusterId] = splitFrom == handle ? other : handle;
+        }
+    }
+
+    /**
+     * Searches from two members of a cluster, one member at a time from each side. If the
+     * searches meet, they are still connected; if one side runs out of members first, they
+     * form a cluster of their own.
+     *
+     * @return the member whose side was split off, or {@link #NONE}
+     */
+    private int separate(int a, int b) {
+        int current = ++stamp;
+        searchA[0] = a;
+        searchB[0] = b;
+        markA[a] = current;
+        markB[b] = current;
+        int headA = 0;
+        int tailA = 1;
+        int headB = 0;
+        int tailB = 1;
+        while (true) {
+            if (headA == tailA) {
+                split(searchA, tailA);
+                return a;
+            }
+            int expanded = searchA[headA++];
+            for (int i = 0; i < linkCount[expanded]; i++) {
+                int other = links[expanded][i];
+                if (markB[other] == current) {
+                    return NONE;
+                }
+                if (markA[other] != current) {
+                    markA[other] = current;
+                    searchA[tailA++] = other;
+                }
+            }
+
+            if (headB == tailB) {
+                split(searchB, tailB);
+                return b;
+            }
+            expanded = searchB[headB++];
+            for (int i = 0; i < linkCount[expanded]; i++) {
+                int other = links[expanded][i];
+                if (markA[other] == current) {
+                    return NONE;
+                }
+                if (markB[other] != current) {
+                    markB[other] = current;
+                    searchB[tailB++] = other;
+                }
+            }
+        }
+    }
+
+    private void split(int[] part, int count) {
+        int clusterId = newCluster();
+        for (int i = 0; i < count; i++) {
+            int handle = part[i];
+            removeFromCluster(handle);
+            addToCluster(handle, clusterId);
+            markChanged(handle);
+        }
+    }
+
+    /**
+     * Moves the members of the smaller cluster into the larger one.
+     */
+    private void merge(int first, int second) {
+        int kept = clusterSize[first] >= clusterSize[second] ? first : second;
+        int merged = kept == first ? second : first;
+        int handle = clusterHead[merged];
+        while (handle != NONE) {
+            int next = nextInCluster[handle];
+            removeFromCluster(handle);
+            addToCluster(handle, kept);
+            markChanged(handle);
+            handle = next;
+        }
+    }
+
+    private void markChanged(int handle) {
+        if (changedIn[handle] != generation) {
+            changedIn[handle] = generation;
+            changed.add(members[handle]);
+        }
+    }
+
+    private void addToCluster(int handle, int clusterId) {
+        cluster[handle] = clusterId;
+        int head = clusterHead[clusterId];
+        nextInCluster[handle] = head;
+        previousInCluster[handle] = NONE;
+        if (head != NONE) {
+            previousInCluster[head] = handle;
+        }
+        clusterHead[clusterId] = handle;
+        clusterSize[clusterId]++;
+    }
+
+    private void removeFromCluster(int handle) {
+        int clusterId = cluster[handle];
+        int before = previousInCluster[handle];
+        int after = nextInCluster[handle];
+        if (before != NONE) {
+            nextInCluster[before] = after;
+        } else {
+            clusterHead[clusterId] = after;
+        }
+        if (after != NONE) {
+            previousInCluster[after] = before;
+        }
+        cluster[handle] = NONE;
+        if (--clusterSize[clusterId] == 0) {
+            liveClusters--;
+            // Reused only after the next reclustering, so that an id never names two flocks at once.
+            releasedClusterIds = grow(releasedClusterIds, releasedClusterIdCount + 1);
+            releasedClusterIds[releasedClusterIdCount++] = clusterId;
+        }
+    }
+
+    private int newCluster() {
+        int clusterId;
+        if (freeClusterIdCount > 0) {
+            clusterId = freeClusterIds[--freeClusterIdCount];
+        } else {
+            clusterId = clusterIdCount++;
+            clusterHead = grow(clusterHead, clusterIdCount);
+            clusterSize = grow(clusterSize, clusterIdCount);
+            representative = grow(representative, clusterIdCount);
+            representativeIn = grow(representativeIn, clusterIdCount);
+        }
+        clusterHead[clusterId] = NONE;
+        clusterSize[clusterId] = 0;
+        liveClusters++;
+        return clusterId;
+    }
+
+    private void addLink(int handle, int other) {
+        int[] memberLinks = links[handle];
+        if (memberLinks == null) {
+            memberLinks = new int[INITIAL_LINKS];
+        } else if (linkCount[handle] == memberLinks.length) {
+            memberLinks = Arrays.copyOf(memberLinks, memberLinks.length * 2);
+        }
+        links[handle] = memberLinks;
+        memberLinks[linkCount[handle]++] = other;
+    }
+
+    private void removeLink(int handle, int other) {
+        int[] memberLinks = links[handle];
+        for (int i = 0; i < linkCount[handle]; i++) {
+            if (memberLinks[i] == other) {
+                memberLinks[i] = memberLinks[--linkCount[handle]];
+                return;
+            }
+        }
+    }
+
+    private void addEndpoint(int handle) {
+        endpoints = grow(endpoints, endpointCount + 1);
+        endpoints[endpointCount++] = handle;
+    }
+
+    private void recycle() {
+        freeHandles = grow(freeHandles, freeHandleCount + releasedHandleCount);
+        System.arraycopy(releasedHandles, 0, freeHandles, freeHandleCount, releasedHandleCount);
+        freeHandleCount += releasedHandleCount;
+        releasedHandleCount = 0;
+        freeClusterIds = grow(freeClusterIds, freeClusterIdCount + releasedClusterIdCount);
+        System.arraycopy(releasedClusterIds, 0, freeClusterIds, freeClusterIdCount, releasedClusterIdCount);
+        freeClusterIdCount += releasedClusterIdCount;
+        releasedClusterIdCount = 0;
+    }
+
+    private String flockId(int clusterId) {
+        return herdId + "#" + clusterId;
+    }
+
+    private static int[] grow(int[] array, int required) {
+        return required <= array.length ? array : Arrays.copyOf(array, Math.max(required, Math.max(16, array.length * 2)));
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= members.length) {
+            return;
+        }
+        int capacity = Math.max(required, Math.max(16, members.length * 2));
+        members = Arrays.copyOf(members, capacity);
+        cluster = Arrays.copyOf(cluster, capacity);
+        nextInCluster = Arrays.copyOf(nextInCluster, capacity);
+        previousInCluster = Arrays.copyOf(previousInCluster, capacity);
+        checkedX = Arrays.copyOf(checkedX, capacity);
+        checkedY = Arrays.copyOf(checkedY, capacity);
+        checkedZ = Arrays.copyOf(checkedZ, capacity);
+        links = Arrays.copyOf(links, capacity);
+        linkCount = Arrays.copyOf(linkCount, capacity);
+        queued = Arrays.copyOf(queued, capacity);
+        markA = Arrays.copyOf(markA, capacity);
+        markB = Arrays.copyOf(markB, capacity);
+        changedIn = Arrays.copyOf(changedIn, capacity);
+        moved = Arrays.copyOf(moved, capacity);
+        neighbours = new int[capacity];
+        searchA = new int[capacity];
+        searchB = new int[capacity];
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays copy of a flock, captured once per tick. Every array is indexed
+ * by member slot; a slot without an entity is unused. Buffers only grow, so steady-state
+ * captures do not allocate.
+ * <p>
+ * The result buffers hold the output of the steering pass for each member. The target
+ * buffers hold what has been published from it: the previous and the latest target of
+ * each member and the simulation time at which the latest one was applied, so that
+ * members can be interpolated between simulation ticks.
+ * <p>
+ * The level of detail of a member decides how often it is captured and steered: members
+ * that are not due on a tick keep their last captured state.
+ */
+class FlockSnapshot {
+
+    static final float NO_TARGET = -1f;
+
+    /**
+     * Steered by its neighbours on every simulation tick.
+     */
+    static final byte LOD_FULL = 0;
+    /**
+     * Steered by its neighbours every few simulation ticks.
+     */
+    static final byte LOD_REDUCED = 1;
+    /**
+     * Follows the average motion of the distant part of its flock, every few simulation ticks.
+     */
+    static final byte LOD_FAR = 2;
+
+    EntityRef[] entities = new EntityRef[0];
+    float[] positionX = new float[0];
+    float[] positionY = new float[0];
+    float[] positionZ = new float[0];
+    float[] directionX = new float[0];
+    float[] directionY = new float[0];
+    float[] directionZ = new float[0];
+    float[] speed = new float[0];
+    float[] searchRadius = new float[0];
+    float[] separationDistance = new float[0];
+    float[] separationWeight = new float[0];
+    float[] alignmentWeight = new float[0];
+    float[] cohesionWeight = new float[0];
+    boolean[] topological = new boolean[0];
+    int[] neighbourCount = new int[0];
+    byte[] lod = new byte[0];
+    int[] nextTick = new int[0];
+    boolean[] due = new boolean[0];
+
+    boolean[] hasResult = new boolean[0];
+    float[] resultX = new float[0];
+    float[] resultY = new float[0];
+    float[] resultZ = new float[0];
+    float[] resultSpeed = new float[0];
+
+    float[] targetX = new float[0];
+    float[] targetY = new float[0];
+    float[] targetZ = new float[0];
+    float[] previousTargetX = new float[0];
+    float[] previousTargetY = new float[0];
+    float[] previousTargetZ = new float[0];
+    float[] targetTime = new float[0];
+    float[] targetPeriod = new float[0];
+
+    int capacity() {
+        return entities.length;
+    }
+
+    void ensureCapacity(int required) {
+        if (required <= entities.length) {
+            return;
+        }
+        int capacity = Math.max(required, Math.max(16, entities.length * 2));
+        entities = Arrays.copyOf(entities, capacity);
+        positionX = Arrays.copyOf(positionX, capacity);
+        positionY = Arrays.copyOf(positionY, capacity);
+        positionZ = Arrays.copyOf(positionZ, capacity);
+        directionX = Arrays.copyOf(directionX, capacity);
+        directionY = Arrays.copyOf(directionY, capacity);
+        directionZ = Arrays.copyOf(directionZ, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        searchRadius = Arrays.copyOf(searchRadius, capacity);
+        separationDistance = Arrays.copyOf(separationDistance, capacity);
+        separationWeight = Arrays.copyOf(separationWeight, capacity);
+        alignmentWeight = Arrays.copyOf(alignmentWeight, capacity);
+        cohesionWeight = Arrays.copyOf(cohesionWeight, capacity);
+        topological = Arrays.copyOf(topological, capacity);
+        neighbourCount = Arrays.copyOf(neighbourCount, capacity);
+        lod = Arrays.copyOf(lod, capacity);
+        nextTick = Arrays.copyOf(nextTick, capacity);
+        due = Arrays.copyOf(due, capacity);
+        hasResult = Arrays.copyOf(hasResult, capacity);
+        resultX = Arrays.copyOf(resultX, capacity);
+        resultY = Arrays.copyOf(resultY, capacity);
+        resultZ = Arrays.copyOf(resultZ, capacity);
+        resultSpeed = Arrays.copyOf(resultSpeed, capacity);
+        targetX = Arrays.copyOf(targetX, capacity);
+        targetY = Arrays.copyOf(targetY, capacity);
+        targetZ = Arrays.copyOf(targetZ, capacity);
+        previousTargetX = Arrays.copyOf(previousTargetX, capacity);
+        previousTargetY = Arrays.copyOf(previousTargetY, capacity);
+        previousTargetZ = Arrays.copyOf(previousTargetZ, capacity);
+        targetTime = Arrays.copyOf(targetTime, capacity);
+        targetPeriod = Arrays.copyOf(targetPeriod, capacity);
+    }
+
+    void assign(int slot, EntityRef entity) {
+        ensureCapacity(slot + 1);
+        entities[slot] = entity;
+        lod[slot] = LOD_FULL;
+        nextTick[slot] = 0;
+        due[slot] = false;
+        targetTime[slot] = NO_TARGET;
+    }
+
+    void release(int slot) {
+        entities[slot] = null;
+        due[slot] = false;
+        hasResult[slot] = false;
+        targetTime[slot] = NO_TARGET;
+    }
+
+    /**
+     * Sets a new steering target for a slot. The previous target becomes the position the
+     * member was being interpolated towards at {@code time}, so targets never jump.
+     *
+     * @param interpolationPeriod the time until the member gets its next target
+     */
+    void setTarget(int slot, float x, float y, float z, float time, float interpolationPeriod) {
+        if (targetTime[slot] == NO_TARGET) {
+            previousTargetX[slot] = x;
+            previousTargetY[slot] = y;
+            previousTargetZ[slot] = z;
+        } else {
+            float alpha = interpolation(slot, time);
+            previousTargetX[slot] += (targetX[slot] - previousTargetX[slot]) * alpha;
+            previousTargetY[slot] += (targetY[slot] - previousTargetY[slot]) * alpha;
+            previousTargetZ[slot] += (targetZ[slot] - previousTargetZ[slot]) * alpha;
+        }
+        targetX[slot] = x;
+        targetY[slot] = y;
+        targetZ[slot] = z;
+        targetTime[slot] = time;
+        targetPeriod[slot] = interpolationPeriod;
+    }
+
+    /**
+     * @return how far, from 0 to 1, a member has moved from its previous to its latest target
+     */
+    float interpolation(int slot, float time) {
+        if (targetPeriod[slot] <= 0) {
+            return 1f;
+        }
+        float alpha = (time - targetTime[slot]) / targetPeriod[slot];
+        return alpha < 0 ? 0 : (alpha > 1 ? 1 : alpha);
+    }
+}
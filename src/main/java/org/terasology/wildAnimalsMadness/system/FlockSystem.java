@@ -17,85 +17,625 @@ package org.terasology.wildAnimalsMadness.system;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.terasology.behaviors.system.FindNearbyPlayersSystem;
 import org.terasology.entitySystem.entity.EntityManager;
 import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
 import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
 import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.behavior.GroupTagComponent;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
 import org.terasology.logic.location.LocationComponent;
 import org.terasology.math.geom.Quat4f;
 import org.terasology.math.geom.Vector3f;
-import org.terasology.minion.move.MinionMoveComponent;
+import org.terasology.network.ClientComponent;
 import org.terasology.registry.In;
+import org.terasology.registry.Share;
 import org.terasology.wildAnimalsMadness.components.FlockComponent;
 
-import java.util.HashSet;
-import java.util.Random;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Updates every flock in the world. Entities are grouped into independent flocks by
+ * {@link FlockComponent#flockId} (or their first group label), and every member is
+ * steered by its own neighbours using separation, alignment and cohesion weighted by its
+ * {@link FlockComponent}. Flocks are steered concurrently on a small worker pool; the
+ * entity system is only read and written from the main thread.
+ * <p>
+ * Steering runs asynchronously: once a tick has captured every member, the flocks are handed
+ * to the workers and the main thread carries on with the frame. The workers write into the
+ * snapshot result buffers, while {@link #getSteeringTarget} keeps serving the targets
+ * published by the previous tick. On a later frame, once every flock is steered, the results
+ * are published and become the new targets. Membership changes that arrive while the
+ * workers run are deferred until they are done.
+ * <p>
+ * Membership is tracked from component lifecycle events, and each tick copies member
+ * state into the flocks' reusable {@link FlockSnapshot} buffers, so the steady-state
+ * update does not allocate.
+ * <p>
+ * The simulation runs at a fixed rate with a per-frame time budget (see {@link #update(float)});
+ * members are steered towards targets interpolated between simulation ticks.
+ * <p>
+ * Members further from every player are captured and steered less often, and the ones far
+ * away move with their flock as a single blob (see {@link FlockComponent#lodFarDistance}).
+ * <p>
+ * Members with {@link FlockComponent#cluster} set form herds, which are split into flocks of
+ * nearby members by {@link FlockClusters} at the end of every tick.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(FlockSystem.class)
 public class FlockSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
 
-    private static final Logger logger = LoggerFactory.getLogger(FindNearbyPlayersSystem.class);
-    private transient Random random = new Random();
+    /**
+     * Flock used by members that have neither a flock id nor a group label.
+     */
+    public static final String DEFAULT_FLOCK = "";
+
+    private static final Logger logger = LoggerFactory.getLogger(FlockSystem.class);
+    private static final Vector3f FORWARD = new Vector3f(0, 0, 1);
+    private static final int BUDGET_CHECK_MASK = 0x1F;
+    private static final float REDUCED_INPUT_INTERVAL = 0.1f;
+    private static final float FAR_INPUT_INTERVAL = 0.25f;
+    /**
+     * Smallest search radius used to size the grids of flocks and herds, whatever the prefab says.
+     */
+    private static final float MIN_SEARCH_RADIUS = 0.1f;
+
+    private enum Phase {
+        IDLE, CAPTURE, COMPUTE, APPLY
+    }
 
     @In
     private EntityManager entityManager;
+    @In
+    private MadnessMetrics metrics;
+
+    private final Map<String, Flock> flocks = new HashMap<>();
+    private final Map<EntityRef, Flock> memberFlocks = new HashMap<>();
+    private final Map<String, FlockClusters> herds = new HashMap<>();
+    private final Map<EntityRef, FlockClusters> memberHerds = new HashMap<>();
+    private final List<Flock> pendingFlocks = new ArrayList<>();
+    private final List<Flock> emptyFlocks = new ArrayList<>();
+    private final List<Future<Flock>> computeResults = new ArrayList<>();
+    /**
+     * Membership changes received while the workers steer: true to (re)assign the entity, false to remove it.
+     */
+    private final Map<EntityRef, Boolean> deferredMembers = new LinkedHashMap<>();
+    private ExecutorService workers;
+
+    private final Vector3f scratchPosition = new Vector3f();
+    private final Vector3f scratchDirection = new Vector3f();
+    private final Quat4f scratchRotation = new Quat4f();
+
+    /**
+     * Grid cell size. Non-positive values size the cells to the flock search radius.
+     */
+    private float cellSize;
+
+    /**
+     * Flock simulation ticks per second. Non-positive values simulate on every frame.
+     */
+    private float simulationRate = 10f;
+
+    /**
+     * Milliseconds the simulation may use per frame. Non-positive values disable the budget.
+     */
+    private float tickBudget = 2f;
+
+    private float[] playerPositions = new float[0];
+    private int playerCount;
+
+    private int tickCount;
+    private float simulationTime;
+    private float accumulator;
+    private Phase phase = Phase.IDLE;
+    private int flockCursor;
+    private int slotCursor;
+    private int processedMembers;
+
+    @Override
+    public void initialise() {
+        int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicInteger workerIndex = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "flock-worker-" + workerIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    @Override
+    public void postBegin() {
+        for (EntityRef entity : entityManager.getEntitiesWith(FlockComponent.class, LocationComponent.class)) {
+            assignFlock(entity, entity.getComponent(FlockComponent.class));
+        }
+    }
+
+    @ReceiveEvent(components = {FlockComponent.class, LocationComponent.class})
+    public void onFlockMemberActivated(OnActivatedComponent event, EntityRef entity, FlockComponent flockComponent) {
+        if (phase == Phase.COMPUTE) {
+            deferredMembers.put(entity, true);
+        } else {
+            assignFlock(entity, flockComponent);
+        }
+    }
+
+    @ReceiveEvent(components = {FlockComponent.class})
+    public void onFlockMemberChanged(OnChangedComponent event, EntityRef entity, FlockComponent flockComponent) {
+        if (phase == Phase.COMPUTE) {
+            deferredMembers.put(entity, true);
+        } else if (entity.hasComponent(LocationComponent.class)) {
+            assignFlock(entity, flockComponent);
+        }
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class})
+    public void onGroupsChanged(OnChangedComponent event, EntityRef entity) {
+        if (phase == Phase.COMPUTE) {
+            deferredMembers.put(entity, true);
+        } else if (entity.hasComponent(FlockComponent.class) && entity.hasComponent(LocationComponent.class)) {
+            assignFlock(entity, entity.getComponent(FlockComponent.class));
+        }
+    }
+
+    @ReceiveEvent(components = {FlockComponent.class})
+    public void onFlockMemberDeactivated(BeforeDeactivateComponent event, EntityRef entity) {
+        if (phase == Phase.COMPUTE) {
+            deferredMembers.put(entity, false);
+        } else {
+            removeMember(entity);
+        }
+    }
 
+    @Command(shortDescription = "Sets the cell size of the flock spatial grid, at least a quarter of the search radius. Use 0 to match the flock search radius.")
+    public String flockCellSize(@CommandParam("size") float size) {
+        cellSize = size;
+        return "Flock grid cell size: " + (size > 0 ? size : "search radius");
+    }
+
+    @Command(shortDescription = "Lists the active flocks, their sizes and how many members are near, at medium range and far from players.")
+    public String flocks() {
+        StringBuilder builder = new StringBuilder("Flocks: " + flocks.size());
+        for (Flock flock : flocks.values()) {
+            builder.append("\n  '").append(flock.getId()).append("': ").append(flock.size()).append(" members (")
+                    .append(flock.getLevelOfDetailCount(FlockSnapshot.LOD_FULL)).append(" near, ")
+                    .append(flock.getLevelOfDetailCount(FlockSnapshot.LOD_REDUCED)).append(" medium, ")
+                    .append(flock.getLevelOfDetailCount(FlockSnapshot.LOD_FAR)).append(" far)");
+        }
+        for (FlockClusters herd : herds.values()) {
+            builder.append("\n  herd '").append(herd.getId()).append("': ").append(herd.size()).append(" members in ")
+                    .append(herd.getClusterCount()).append(" flocks");
+        }
+        return builder.toString();
+    }
+
+    @Command(shortDescription = "Sets the player distances at which a flock is steered less often and moved as a blob. Use -1 to restore the component values, and 0 as far distance to disable.")
+    public String flockLod(@CommandParam("flock") String flockId, @CommandParam("near") float near, @CommandParam("far") float far) {
+        Flock flock = flocks.get(flockId);
+        if (flock == null) {
+            return "No flock '" + flockId + "'.";
+        }
+        flock.setLevelOfDetailDistances(near, far);
+        return "Flock '" + flockId + "' level of detail: near " + (near >= 0 ? near : "from components")
+                + ", far " + (far >= 0 ? far : "from components");
+    }
+
+    @Command(shortDescription = "Sets the flock simulation rate in ticks per second. Use 0 to simulate on every frame.")
+    public String flockRate(@CommandParam("rate") float rate) {
+        simulationRate = rate;
+        return "Flock simulation rate: " + (rate > 0 ? rate + " Hz" : "every frame");
+    }
+
+    @Command(shortDescription = "Sets the time the flock simulation may use per frame, in milliseconds. Use 0 for no limit.")
+    public String flockBudget(@CommandParam("milliseconds") float milliseconds) {
+        tickBudget = milliseconds;
+        return "Flock tick budget: " + (milliseconds > 0 ? milliseconds + " ms" : "unlimited");
+    }
+
+    @Command(shortDescription = "Shows how many flock ticks were simulated and how many members were steered.")
+    public String flockStats() {
+        return "Flock ticks: " + tickCount + ", members steered: " + processedMembers + ", for " + flocks.size()
+                + " flocks and " + memberFlocks.size() + " members";
+    }
+
+    /**
+     * Writes the steering target of a flock member into {@code out}, interpolated between
+     * the results of the last two simulation ticks.
+     *
+     * @return false if the entity is not a flock member or has no target yet
+     */
+    public boolean getSteeringTarget(EntityRef member, Vector3f out) {
+        Flock flock = memberFlocks.get(member);
+        return flock != null && flock.getTarget(member, simulationTime, out);
+    }
+
+    /**
+     * @return the minimum time between two movement inputs of a flock member, which grows
+     * with its distance from the players; 0 for members that should move on every frame
+     */
+    public float getInputInterval(EntityRef member) {
+        Flock flock = memberFlocks.get(member);
+        if (flock == null) {
+            return 0;
+        }
+        switch (flock.getLevelOfDetail(member)) {
+            case FlockSnapshot.LOD_REDUCED:
+                return REDUCED_INPUT_INTERVAL;
+            case FlockSnapshot.LOD_FAR:
+                return FAR_INPUT_INTERVAL;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Advances the flock simulation. A simulation tick starts at the configured fixed rate and
+     * captures, computes and applies every flock. When the tick budget runs out, the tick is
+     * suspended and resumed on the next frame where it left off, so the cost per frame stays
+     * bounded regardless of the number of members. Steering itself runs on the workers and
+     * does not count against the budget: its results are applied on the first frame after
+     * every flock is done.
+     */
     @Override
     public void update(float delta) {
+        long start = metrics.start();
+        int processed = processedMembers;
+        advance(delta);
+        metrics.count(MadnessMetrics.Counter.ENTITIES, processedMembers - processed);
+        metrics.stop(MadnessMetrics.Timer.FLOCK_SYSTEM, start);
+    }
+
+    private void advance(float delta) {
+        simulationTime += delta;
+        accumulator += delta;
+
+        if (phase == Phase.IDLE) {
+            if (simulationRate > 0) {
+                float step = 1f / simulationRate;
+                if (accumulator < step) {
+                    return;
+                }
+                accumulator = Math.min(accumulator - step, step);
+            }
+            if (!beginTick()) {
+                return;
+            }
+        }
+
+        long deadline = Long.MAX_VALUE;
+        if (simulationRate > 0 && tickBudget > 0) {
+            deadline = System.nanoTime() + (long) (tickBudget * 1000000);
+        }
+        advanceTick(deadline);
+    }
+
+    private boolean beginTick() {
+        pendingFlocks.clear();
+        emptyFlocks.clear();
+        for (Flock flock : flocks.values()) {
+            if (flock.size() == 0) {
+                emptyFlocks.add(flock);
+            } else {
+                pendingFlocks.add(flock);
+            }
+        }
+        for (Flock flock : emptyFlocks) {
+            flocks.remove(flock.getId());
+        }
+        if (pendingFlocks.isEmpty()) {
+            return false;
+        }
+        tickCount++;
+        capturePlayers();
+        phase = Phase.CAPTURE;
+        flockCursor = 0;
+        slotCursor = 0;
+        return true;
+    }
 
-        Set<EntityRef> flock = new HashSet<>();
-        Vector3f flockCentre = Vector3f.zero();
-        Vector3f flockAvoid = Vector3f.zero();
-        Vector3f basePosition = Vector3f.zero();
-        Vector3f baseDirection = Vector3f.zero();
-        float neighbourRadius = 1000f;
-        float groupSpeed = 0.1f;
-
-        for (EntityRef entity : entityManager.getEntitiesWith(FlockComponent.class)) {
-            flock.add(entity);
-        }
-
-        int flockSize = flock.size();
-        int baseEntityIndex = random.nextInt(flockSize - 1);
-        EntityRef baseEntity = (EntityRef)(flock.toArray()[baseEntityIndex]);
-        basePosition = baseEntity.getComponent(LocationComponent.class).getWorldPosition();
-        baseDirection = baseEntity.getComponent(LocationComponent.class).getWorldDirection();
-        neighbourRadius = baseEntity.getComponent(FlockComponent.class).searchRadius;
-
-        for(EntityRef memberCandidate : flock) {
-            Vector3f memberPosition = memberCandidate.getComponent(LocationComponent.class).getWorldPosition();
-            float distance = Vector3f.distance(memberPosition,baseDirection);
-            if(distance <= neighbourRadius) {
-                flockCentre.setX(flockCentre.getX() + memberPosition.getX());
-                flockCentre.setY(flockCentre.getY() + memberPosition.getY());
-                flockCentre.setZ(flockCentre.getZ() + memberPosition.getZ());
-                if(distance < 1f) {
-                    flockAvoid.setX(flockAvoid.getX() + basePosition.getX() - memberPosition.getX());
-                    flockAvoid.setY(flockAvoid.getY() + basePosition.getY() - memberPosition.getY());
-                    flockAvoid.setZ(flockAvoid.getZ() + basePosition.getZ() - memberPosition.getZ());
+    private void advanceTick(long deadline) {
+        if (phase == Phase.CAPTURE) {
+            if (!processMembers(false, deadline)) {
+                return;
+            }
+            startCompute();
+            return;
+        }
+        if (phase == Phase.COMPUTE) {
+            if (!finishCompute()) {
+                return;
+            }
+            applyDeferredMembers();
+        }
+        if (phase == Phase.APPLY) {
+            if (!processMembers(true, deadline)) {
+                return;
+            }
+            recluster();
+            phase = Phase.IDLE;
+        }
+    }
+
+    /**
+     * Captures or applies the members of the pending flocks in round-robin order, starting
+     * from the current cursor.
+     *
+     * @return true once every member has been processed, false if the deadline was hit first
+     */
+    private boolean processMembers(boolean apply, long deadline) {
+        while (flockCursor < pendingFlocks.size()) {
+            Flock flock = pendingFlocks.get(flockCursor);
+            while (slotCursor < flock.getSlotCount()) {
+                EntityRef member = flock.getSnapshot().entities[slotCursor];
+                if (member != null) {
+                    if (apply) {
+                        applyMember(flock, slotCursor, member);
+                    } else {
+                        captureMember(flock, slotCursor, member);
+                    }
+                    if ((++processedMembers & BUDGET_CHECK_MASK) == 0 && System.nanoTime() > deadline) {
+                        slotCursor++;
+                        return false;
+                    }
+                }
+                slotCursor++;
+            }
+            flockCursor++;
+            slotCursor = 0;
+        }
+        flockCursor = 0;
+        return true;
+    }
+
+    /**
+     * Copies the world position of every player character into {@link #playerPositions}.
+     */
+    private void capturePlayers() {
+        playerCount = 0;
+        for (EntityRef client : entityManager.getEntitiesWith(ClientComponent.class)) {
+            EntityRef character = client.getComponent(ClientComponent.class).character;
+            LocationComponent location = character == null ? null : character.getComponent(LocationComponent.class);
+            if (location != null) {
+                if (playerPositions.length < (playerCount + 1) * 3) {
+                    playerPositions = Arrays.copyOf(playerPositions, Math.max(6, playerPositions.length * 2));
                 }
-                groupSpeed += memberCandidate.getComponent(FlockComponent.class).speed;
+                location.getWorldPosition(scratchPosition);
+                playerPositions[playerCount * 3] = scratchPosition.x;
+                playerPositions[playerCount * 3 + 1] = scratchPosition.y;
+                playerPositions[playerCount * 3 + 2] = scratchPosition.z;
+                playerCount++;
+            }
+        }
+    }
+
+    /**
+     * @return the squared distance to the nearest player, or infinity if there is none
+     */
+    private float nearestPlayerDistanceSquared(float x, float y, float z) {
+        float nearest = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < playerCount; i++) {
+            float dx = playerPositions[i * 3] - x;
+            float dy = playerPositions[i * 3 + 1] - y;
+            float dz = playerPositions[i * 3 + 2] - z;
+            nearest = Math.min(nearest, dx * dx + dy * dy + dz * dz);
+        }
+        return nearest;
+    }
+
+    /**
+     * Copies position, direction and speed of a member into the flock snapshot, if the member
+     * is due on this tick. Members that are not due are left out without reading any component.
+     */
+    private void captureMember(Flock flock, int slot, EntityRef member) {
+        if (flock.getSnapshot().nextTick[slot] > tickCount) {
+            flock.skip(slot);
+            return;
+        }
+        LocationComponent location = member.getComponent(LocationComponent.class);
+        FlockComponent flockComponent = member.getComponent(FlockComponent.class);
+        if (location == null || flockComponent == null) {
+            flock.skip(slot);
+            return;
+        }
+        location.getWorldPosition(scratchPosition);
+        location.getWorldRotation(scratchRotation).rotate(FORWARD, scratchDirection);
+
+        byte lod = flock.levelOfDetail(nearestPlayerDistanceSquared(scratchPosition.x, scratchPosition.y, scratchPosition.z),
+                flockComponent);
+        int interval = 1;
+        if (lod == FlockSnapshot.LOD_REDUCED) {
+            interval = Math.max(1, flockComponent.lodReducedInterval);
+        } else if (lod == FlockSnapshot.LOD_FAR) {
+            interval = Math.max(1, flockComponent.lodFarInterval);
+        }
+        // Staggered by slot, so that members at the same level of detail spread over ticks.
+        int nextTick = tickCount + interval - (tickCount + slot) % interval;
+        flock.capture(slot, scratchPosition.x, scratchPosition.y, scratchPosition.z,
+                scratchDirection.x, scratchDirection.y, scratchDirection.z, flockComponent, lod, nextTick);
+        if (flockComponent.cluster) {
+            FlockClusters herd = memberHerds.get(member);
+            if (herd != null) {
+                herd.update(member, scratchPosition.x, scratchPosition.y, scratchPosition.z);
+            }
+        }
+    }
+
+    /**
+     * Publishes the new steering target of a member. Steering results stay in the flock
+     * snapshot; members' components are never written, so they hold nothing but their
+     * settings and a member only refers to its flock through its id.
+     */
+    private void applyMember(Flock flock, int slot, EntityRef member) {
+        FlockSnapshot snapshot = flock.getSnapshot();
+        if (!snapshot.due[slot] || !snapshot.hasResult[slot]) {
+            return;
+        }
+        snapshot.setTarget(slot, snapshot.resultX[slot], snapshot.resultY[slot], snapshot.resultZ[slot],
+                simulationTime, (snapshot.nextTick[slot] - tickCount) * interpolationPeriod());
+    }
+
+    /**
+     * Hands every captured flock to the worker pool. Each flock is steered as a whole by a
+     * single worker, while the main thread goes on with the frame.
+     */
+    private void startCompute() {
+        phase = Phase.COMPUTE;
+        for (Flock flock : pendingFlocks) {
+            flock.beginCompute(cellSize);
+            flock.nextComputeRange(flock.getSlotCount());
+            computeResults.add(workers.submit(flock));
+        }
+    }
+
+    /**
+     * @return true once every flock has been steered, false if a worker is still busy
+     */
+    private boolean finishCompute() {
+        for (Future<Flock> result : computeResults) {
+            if (!result.isDone()) {
+                return false;
+            }
+        }
+        for (Future<Flock> result : computeResults) {
+            try {
+                result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.error("Failed to steer flock.", e.getCause());
+            }
+        }
+        computeResults.clear();
+        phase = Phase.APPLY;
+        return true;
+    }
+
+    /**
+     * Applies the membership changes received while the workers were steering. Members that
+     * joined are only captured on the next tick.
+     */
+    private void applyDeferredMembers() {
+        for (Map.Entry<EntityRef, Boolean> change : deferredMembers.entrySet()) {
+            EntityRef entity = change.getKey();
+            if (change.getValue() && entity.exists()
+                    && entity.hasComponent(FlockComponent.class) && entity.hasComponent(LocationComponent.class)) {
+                assignFlock(entity, entity.getComponent(FlockComponent.class));
+            } else {
+                removeMember(entity);
+            }
+        }
+        deferredMembers.clear();
+    }
+
+    private float interpolationPeriod() {
+        return simulationRate > 0 ? 1f / simulationRate : 0;
+    }
+
+    /**
+     * Moves the members of every herd whose clusters changed on this tick to their new flock.
+     */
+    private void recluster() {
+        for (FlockClusters herd : herds.values()) {
+            for (EntityRef member : herd.recluster()) {
+                moveToFlock(member, herd.getFlockId(member), herd.getRadius());
+            }
+        }
+    }
+
+    private void removeMember(EntityRef entity) {
+        FlockClusters herd = memberHerds.remove(entity);
+        if (herd != null) {
+            removeFromHerd(herd, entity);
+        }
+        Flock flock = memberFlocks.remove(entity);
+        if (flock != null) {
+            flock.remove(entity);
+            if (flock.size() == 0) {
+                flocks.remove(flock.getId());
             }
         }
+    }
 
-        flockCentre.setX(flockCentre.getX()/flockSize);
-        flockCentre.setY(flockCentre.getY()/flockSize);
-        flockCentre.setZ(flockCentre.getZ()/flockSize);
+    private void assignFlock(EntityRef entity, FlockComponent flockComponent) {
+        String flockId = resolveFlockId(entity, flockComponent);
+        FlockClusters herd = memberHerds.get(entity);
+        if (herd != null && (!flockComponent.cluster || !herd.getId().equals(flockId))) {
+            memberHerds.remove(entity);
+            removeFromHerd(herd, entity);
+            herd = null;
+        }
+        if (flockComponent.cluster) {
+            if (herd == null) {
+                herd = herds.computeIfAbsent(flockId, id -> new FlockClusters(id, gridRadius(flockComponent)));
+                memberHerds.put(entity, herd);
+            }
+            flockId = herd.add(entity);
+        }
+        moveToFlock(entity, flockId, gridRadius(flockComponent));
+    }
 
-        for(EntityRef member : flock) {
-            FlockComponent flockComponent  = member.getComponent(FlockComponent.class);
-            flockComponent.speed = groupSpeed;
-            flockComponent.flockCentre = flockCentre;
-            flockComponent.flockAvoid = flockAvoid;
-            member.saveComponent(flockComponent);
-            //move this to behavior later
-//            if(member.hasComponent(MinionMoveComponent.class)) {
-//                MinionMoveComponent moveComponent = member.getComponent(MinionMoveComponent.class);
-//                moveComponent.target = flockCentre;
-//                member.saveComponent(moveComponent);
-//            }
+    /**
+     * @return the search radius of the member, clamped to a size a grid accepts
+     */
+    private static float gridRadius(FlockComponent flockComponent) {
+        return flockComponent.searchRadius > MIN_SEARCH_RADIUS ? flockComponent.searchRadius : MIN_SEARCH_RADIUS;
+    }
+
+    private void removeFromHerd(FlockClusters herd, EntityRef entity) {
+        herd.remove(entity);
+        if (herd.size() == 0) {
+            herds.remove(herd.getId());
+        }
+    }
+
+    /**
+     * @param cellSize the initial grid cell size of the flock, if it has to be created
+     */
+    private void moveToFlock(EntityRef entity, String flockId, float cellSize) {
+        Flock flock = memberFlocks.get(entity);
+        if (flock != null && flock.getId().equals(flockId)) {
+            return;
         }
+        Flock target = flocks.computeIfAbsent(flockId, id -> new Flock(id, cellSize));
+        if (flock != null) {
+            flock.transfer(entity, target);
+        } else {
+            target.add(entity);
+        }
+        memberFlocks.put(entity, target);
+    }
 
+    /**
+     * @return the id of the flock the entity belongs to: its flock id, else its first group label
+     */
+    private static String resolveFlockId(EntityRef entity, FlockComponent flockComponent) {
+        if (flockComponent.flockId != null && !flockComponent.flockId.isEmpty()) {
+            return flockComponent.flockId;
+        }
+        GroupTagComponent groupTagComponent = entity.getComponent(GroupTagComponent.class);
+        if (groupTagComponent != null && groupTagComponent.groups != null && !groupTagComponent.groups.isEmpty()) {
+            return groupTagComponent.groups.iterator().next();
+        }
+        return DEFAULT_FLOCK;
     }
 }
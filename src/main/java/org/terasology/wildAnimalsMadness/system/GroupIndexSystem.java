@@ -0,0 +1,297 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.behavior.GroupMindComponent;
+import org.terasology.logic.behavior.GroupTagComponent;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps an index from group label to the entities tagged with it. The index is maintained
+ * from GroupTagComponent lifecycle events, so looking up the members of a group costs
+ * O(members) instead of a scan over every tagged entity in the world.
+ * <p>
+ * The same events keep the member list of every hive (GroupMindComponent) in sync with its
+ * group: members are added once, and removed as soon as they lose the tag or are destroyed
+ * or unloaded. Modified hives are saved once per frame.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(GroupIndexSystem.class)
+public class GroupIndexSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    @In
+    private EntityManager entityManager;
+    @In
+    private MadnessMetrics metrics;
+
+    private final Map<String, Set<EntityRef>> members = new HashMap<>();
+    private final Map<EntityRef, Set<String>> entityGroups = new HashMap<>();
+
+    private final Map<String, Set<EntityRef>> hives = new HashMap<>();
+    private final Map<EntityRef, String> hiveLabels = new HashMap<>();
+    private final Map<EntityRef, Set<EntityRef>> hiveMembers = new HashMap<>();
+    private final Set<EntityRef> dirtyHives = new HashSet<>();
+
+    @Override
+    public void postBegin() {
+        for (EntityRef entity : entityManager.getEntitiesWith(GroupTagComponent.class)) {
+            updateEntity(entity, entity.getComponent(GroupTagComponent.class));
+        }
+        for (EntityRef hive : entityManager.getEntitiesWith(GroupMindComponent.class)) {
+            registerHive(hive, hive.getComponent(GroupMindComponent.class));
+        }
+    }
+
+    @Override
+    public void update(float delta) {
+        if (dirtyHives.isEmpty()) {
+            return;
+        }
+        long start = metrics.start();
+        for (EntityRef hive : dirtyHives) {
+            GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
+            if (null != groupMindComponent) {
+                hive.saveComponent(groupMindComponent);
+            }
+        }
+        metrics.count(MadnessMetrics.Counter.SAVES, dirtyHives.size());
+        dirtyHives.clear();
+        metrics.stop(MadnessMetrics.Timer.GROUP_INDEX_SYSTEM, start);
+    }
+
+    @ReceiveEvent(components = {GroupMindComponent.class})
+    public void onHiveActivated(OnActivatedComponent event, EntityRef hive, GroupMindComponent groupMindComponent) {
+        registerHive(hive, groupMindComponent);
+    }
+
+    @ReceiveEvent(components = {GroupMindComponent.class})
+    public void onHiveChanged(OnChangedComponent event, EntityRef hive, GroupMindComponent groupMindComponent) {
+        String label = hiveLabels.get(hive);
+        if (null == label ? null != groupMindComponent.groupLabel : !label.equals(groupMindComponent.groupLabel)) {
+            unregisterHive(hive);
+            registerHive(hive, groupMindComponent);
+        }
+    }
+
+    @ReceiveEvent(components = {GroupMindComponent.class})
+    public void onHiveDeactivated(BeforeDeactivateComponent event, EntityRef hive) {
+        unregisterHive(hive);
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class})
+    public void onGroupTagActivated(OnActivatedComponent event, EntityRef entity, GroupTagComponent groupTagComponent) {
+        updateEntity(entity, groupTagComponent);
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class})
+    public void onGroupTagChanged(OnChangedComponent event, EntityRef entity, GroupTagComponent groupTagComponent) {
+        updateEntity(entity, groupTagComponent);
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class})
+    public void onGroupTagDeactivated(BeforeDeactivateComponent event, EntityRef entity) {
+        Set<String> labels = entityGroups.remove(entity);
+        if (labels != null) {
+            for (String label : labels) {
+                removeMember(label, entity);
+            }
+        }
+    }
+
+    /**
+     * @return a read-only live view of the entities tagged with the given label
+     */
+    public Set<EntityRef> getMembers(String groupLabel) {
+        Set<EntityRef> groupMembers = members.get(groupLabel);
+        return groupMembers == null ? Collections.emptySet() : Collections.unmodifiableSet(groupMembers);
+    }
+
+    /**
+     * @return a read-only live view of the hives bound to the given label
+     */
+    public Set<EntityRef> getHives(String groupLabel) {
+        Set<EntityRef> labelHives = hives.get(groupLabel);
+        return labelHives == null ? Collections.emptySet() : Collections.unmodifiableSet(labelHives);
+    }
+
+    public int getMemberCount(String groupLabel) {
+        Set<EntityRef> groupMembers = members.get(groupLabel);
+        return groupMembers == null ? 0 : groupMembers.size();
+    }
+
+    /**
+     * @return a read-only view of the labels the entity is currently indexed under
+     */
+    public Set<String> getGroups(EntityRef entity) {
+        Set<String> labels = entityGroups.get(entity);
+        return labels == null ? Collections.emptySet() : Collections.unmodifiableSet(labels);
+    }
+
+    /**
+     * Removes entities that are about to be destroyed from the index and from the member
+     * lists of their hives, with one pass per affected hive. Their deactivation events are
+     * then ignored.
+     */
+    public void removeEntities(Collection<EntityRef> entities) {
+        Map<EntityRef, Set<EntityRef>> removals = new HashMap<>();
+        for (EntityRef entity : entities) {
+            if (hiveLabels.containsKey(entity)) {
+                unregisterHive(entity);
+            }
+            Set<String> labels = entityGroups.remove(entity);
+            if (labels == null) {
+                continue;
+            }
+            for (String label : labels) {
+                Set<EntityRef> groupMembers = members.get(label);
+                if (groupMembers != null) {
+                    groupMembers.remove(entity);
+                    if (groupMembers.isEmpty()) {
+                        members.remove(label);
+                    }
+                }
+                for (EntityRef hive : getHives(label)) {
+                    Set<EntityRef> mirror = hiveMembers.get(hive);
+                    if (null != mirror && mirror.remove(entity)) {
+                        removals.computeIfAbsent(hive, key -> new HashSet<>()).add(entity);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<EntityRef, Set<EntityRef>> entry : removals.entrySet()) {
+            GroupMindComponent groupMindComponent = entry.getKey().getComponent(GroupMindComponent.class);
+            if (null != groupMindComponent) {
+                groupMindComponent.groupMembers.removeAll(entry.getValue());
+                dirtyHives.add(entry.getKey());
+            }
+        }
+    }
+
+    private void updateEntity(EntityRef entity, GroupTagComponent groupTagComponent) {
+        Set<String> current = entityGroups.computeIfAbsent(entity, key -> new HashSet<>());
+        Set<String> updated = groupTagComponent.groups == null
+                ? Collections.emptySet()
+                : new HashSet<>(groupTagComponent.groups);
+        if (current.equals(updated)) {
+            return;
+        }
+
+        for (String label : current) {
+            if (!updated.contains(label)) {
+                removeMember(label, entity);
+            }
+        }
+        for (String label : updated) {
+            if (!current.contains(label)) {
+                members.computeIfAbsent(label, key -> new LinkedHashSet<>()).add(entity);
+                for (EntityRef hive : getHives(label)) {
+                    addHiveMember(hive, entity);
+                }
+            }
+        }
+        current.clear();
+        current.addAll(updated);
+    }
+
+    private void removeMember(String label, EntityRef entity) {
+        Set<EntityRef> groupMembers = members.get(label);
+        if (groupMembers != null) {
+            groupMembers.remove(entity);
+            if (groupMembers.isEmpty()) {
+                members.remove(label);
+            }
+        }
+        for (EntityRef hive : getHives(label)) {
+            removeHiveMember(hive, entity);
+        }
+    }
+
+    /**
+     * Binds a hive to its group label and rebuilds its member list from the index, dropping
+     * duplicates and entities that no longer exist or no longer carry the tag.
+     */
+    private void registerHive(EntityRef hive, GroupMindComponent groupMindComponent) {
+        String label = groupMindComponent.groupLabel;
+        if (null == label || hiveLabels.containsKey(hive)) {
+            return;
+        }
+        hiveLabels.put(hive, label);
+        hives.computeIfAbsent(label, key -> new LinkedHashSet<>()).add(hive);
+
+        Set<EntityRef> groupMembers = getMembers(label);
+        Set<EntityRef> mirror = new HashSet<>();
+        groupMindComponent.groupMembers.removeIf(member -> !groupMembers.contains(member) || !mirror.add(member));
+        for (EntityRef member : groupMembers) {
+            if (mirror.add(member)) {
+                groupMindComponent.groupMembers.add(member);
+            }
+        }
+        hiveMembers.put(hive, mirror);
+        dirtyHives.add(hive);
+    }
+
+    private void unregisterHive(EntityRef hive) {
+        String label = hiveLabels.remove(hive);
+        hiveMembers.remove(hive);
+        dirtyHives.remove(hive);
+        if (null != label) {
+            Set<EntityRef> labelHives = hives.get(label);
+            if (null != labelHives) {
+                labelHives.remove(hive);
+                if (labelHives.isEmpty()) {
+                    hives.remove(label);
+                }
+            }
+        }
+    }
+
+    private void addHiveMember(EntityRef hive, EntityRef member) {
+        Set<EntityRef> mirror = hiveMembers.get(hive);
+        GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
+        if (null != mirror && null != groupMindComponent && mirror.add(member)) {
+            groupMindComponent.groupMembers.add(member);
+            dirtyHives.add(hive);
+        }
+    }
+
+    private void removeHiveMember(EntityRef hive, EntityRef member) {
+        Set<EntityRef> mirror = hiveMembers.get(hive);
+        GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
+        if (null != mirror && null != groupMindComponent && mirror.remove(member)) {
+            groupMindComponent.groupMembers.remove(member);
+            dirtyHives.add(hive);
+        }
+    }
+}
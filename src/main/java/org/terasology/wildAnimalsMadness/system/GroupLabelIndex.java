@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.wildAnimalsMadness.spatial.SpatialHashGrid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The spatial index of the members of one group label, for {@link GroupSpatialIndex}. The
+ * query buffers are kept between calls and only grow with the group.
+ * <p>
+ * Main thread only.
+ */
+final class GroupLabelIndex {
+
+    private final float cellSize;
+    private final SpatialHashGrid grid;
+    private final Map<EntityRef, Integer> handles = new HashMap<>();
+    private final List<Integer> freeHandles = new ArrayList<>();
+    private EntityRef[] entities = new EntityRef[16];
+    private int[] found = new int[64];
+    private float[] distances = new float[64];
+
+    GroupLabelIndex(float cellSize) {
+        this.cellSize = cellSize;
+        this.grid = new SpatialHashGrid(cellSize);
+    }
+
+    int size() {
+        return handles.size();
+    }
+
+    void put(EntityRef entity, float posX, float posY, float posZ) {
+        Integer handle = handles.get(entity);
+        if (handle == null) {
+            handle = freeHandles.isEmpty() ? handles.size() : freeHandles.remove(freeHandles.size() - 1);
+            if (handle >= entities.length) {
+                entities = Arrays.copyOf(entities, entities.length * 2);
+            }
+            entities[handle] = entity;
+            handles.put(entity, handle);
+        }
+        grid.put(handle, posX, posY, posZ);
+    }
+
+    void remove(EntityRef entity) {
+        Integer handle = handles.remove(entity);
+        if (handle != null) {
+            grid.remove(handle);
+            entities[handle] = null;
+            freeHandles.add(handle);
+        }
+    }
+
+    /**
+     * Collects the members within {@code radius} of a point, in no particular order.
+     *
+     * @param out receives the members; results beyond its length are dropped
+     * @return the number of members written to {@code out}
+     */
+    int queryRadius(float posX, float posY, float posZ, float radius, EntityRef[] out) {
+        if (out.length == 0) {
+            return 0;
+        }
+        int count = Math.min(query(posX, posY, posZ, radius), out.length);
+        for (int i = 0; i < count; i++) {
+            out[i] = entities[found[i]];
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of members within {@code radius} of a point
+     */
+    int countRadius(float posX, float posY, float posZ, float radius) {
+        return query(posX, posY, posZ, radius);
+    }
+
+    /**
+     * Collects the {@code k} members nearest to a point, nearest first. The search radius
+     * starts at one grid cell and doubles until enough members are found, as long as the
+     * cells it covers are fewer than the members; past that, every member is scanned, which
+     * also finds members that are arbitrarily far away.
+     *
+     * @param out receives the members; at most {@code out.length} are returned
+     * @return the number of members written to {@code out}
+     */
+    int queryNearest(float posX, float posY, float posZ, int k, EntityRef[] out) {
+        int wanted = Math.min(Math.min(k, out.length), handles.size());
+        if (wanted <= 0) {
+            return 0;
+        }
+        float radius = cellSize;
+        int count = query(posX, posY, posZ, radius);
+        while (count < wanted) {
+            radius *= 2;
+            long span = 2 * (long) Math.ceil(radius / cellSize) + 1;
+            if (span * span * span > handles.size()) {
+                count = scanAll();
+                break;
+            }
+            count = query(posX, posY, posZ, radius);
+        }
+        if (distances.length < count) {
+            distances = new float[found.length];
+        }
+        for (int i = 0; i < count; i++) {
+            float dx = grid.getX(found[i]) - posX;
+            float dy = grid.getY(found[i]) - posY;
+            float dz = grid.getZ(found[i]) - posZ;
+            distances[i] = dx * dx + dy * dy + dz * dz;
+        }
+        // Partial selection sort: k is small next to the number of candidates.
+        for (int i = 0; i < wanted; i++) {
+            int best = i;
+            for (int j = i + 1; j < count; j++) {
+                if (distances[j] < distances[best]) {
+                    best = j;
+                }
+            }
+            swap(i, best);
+            out[i] = entities[found[i]];
+        }
+        return wanted;
+    }
+
+    /**
+     * Runs a radius query into {@link #found}, growing it once if the matches do not fit.
+     */
+    private int query(float posX, float posY, float posZ, float radius) {
+        int count = grid.query(posX, posY, posZ, radius, found);
+        if (count == found.length && found.length < handles.size()) {
+            found = new int[handles.size()];
+            count = grid.query(posX, posY, posZ, radius, found);
+        }
+        return count;
+    }
+
+    private int scanAll() {
+        if (found.length < handles.size()) {
+            found = new int[handles.size()];
+        }
+        int count = 0;
+        for (int handle = 0; handle < entities.length; handle++) {
+            if (entities[handle] != null) {
+                found[count++] = handle;
+            }
+        }
+        return count;
+    }
+
+    private void swap(int i, int j) {
+        int handle = found[i];
+        found[i] = found[j];
+        found[j] = handle;
+        float distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+    }
+}
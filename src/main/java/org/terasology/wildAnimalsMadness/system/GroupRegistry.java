@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.assets.ResourceUrn;
+import org.terasology.assets.management.AssetManager;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.logic.behavior.asset.Group;
+import org.terasology.logic.behavior.asset.GroupData;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves group definitions by label. Group (.group) assets are only indexed by URN when
+ * the game starts, and their label is read the first time it is needed: a lookup first
+ * tries the asset whose file name matches the label (magenta.group for the "magenta"
+ * group), and only loads the other unread assets if that one does not define the label
+ * and the label is not defined in code.
+ * <p>
+ * The registry keeps the URN of each label, and the most recently used group assets in a
+ * bounded cache. The cache holds the asset handles, so a reloaded .group file is seen on
+ * the next lookup. {@link #groupsRefresh()} picks up files that were added or removed.
+ * <p>
+ * Groups defined in code are registered with {@link #register(GroupData)}. An asset
+ * overrides a group defined in code if its file is named after the label, or if it was
+ * already read for another lookup.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(GroupRegistry.class)
+public class GroupRegistry extends BaseComponentSystem {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupRegistry.class);
+
+    @In
+    private AssetManager assetManager;
+
+    private final Map<String, ResourceUrn> labelUrns = new HashMap<>();
+    private final List<ResourceUrn> unreadUrns = new ArrayList<>();
+    private final Map<String, GroupData> registered = new LinkedHashMap<>();
+    private final Map<String, Group> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Maximum number of group assets kept in the cache.
+     */
+    private int maxCachedGroups = 64;
+
+    private int indexed;
+    private int reads;
+
+    @Override
+    public void initialise() {
+        indexAssets();
+    }
+
+    @Command(shortDescription = "Re-indexes the group assets and drops the cached ones.")
+    public String groupsRefresh() {
+        indexAssets();
+        return "Group assets indexed: " + indexed;
+    }
+
+    @Command(shortDescription = "Sets how many group assets the group registry keeps cached.")
+    public String groupsCacheSize(@CommandParam("groups") int groups) {
+        maxCachedGroups = Math.max(0, groups);
+        trim();
+        return "Group assets kept cached: up to " + maxCachedGroups;
+    }
+
+    @Command(shortDescription = "Shows the group registry contents.")
+    public String groupsStats() {
+        return "Group assets: " + indexed + " indexed, " + labelUrns.size() + " labels read, " + cache.size()
+                + " cached, " + reads + " reads. Groups defined in code: " + registered.size();
+    }
+
+    /**
+     * Registers a group defined in code. A group asset with the same label takes precedence.
+     */
+    public void register(GroupData groupData) {
+        registered.put(groupData.getGroupLabel(), groupData);
+    }
+
+    /**
+     * @return a read-only view of the labels of the groups defined in code
+     */
+    public Set<String> getRegisteredLabels() {
+        return Collections.unmodifiableSet(registered.keySet());
+    }
+
+    /**
+     * @return true if a group asset defines the given label
+     */
+    public boolean hasAsset(String groupLabel) {
+        return null != getAsset(groupLabel);
+    }
+
+    /**
+     * @return the definition of a group, from its asset if there is one, else as registered
+     * in code; null if the group is unknown
+     */
+    @Nullable
+    public GroupData getGroupData(String groupLabel) {
+        Group group = getAsset(groupLabel);
+        if (null != group) {
+            return group.getGroupData();
+        }
+        return registered.get(groupLabel);
+    }
+
+    @Nullable
+    private Group getAsset(String groupLabel) {
+        Group cached = cache.get(groupLabel);
+        if (null != cached) {
+            if (!cached.isDisposed() && null != cached.getGroupData()
+                    && groupLabel.equals(cached.getGroupData().getGroupLabel())) {
+                return cached;
+            }
+            cache.remove(groupLabel);
+        }
+
+        ResourceUrn urn = labelUrns.get(groupLabel);
+        if (null != urn) {
+            Group group = load(urn);
+            if (null != group && groupLabel.equals(group.getGroupData().getGroupLabel())) {
+                return cache(groupLabel, group);
+            }
+            // The file no longer defines this label: read it again with the unread ones.
+            labelUrns.remove(groupLabel);
+            unreadUrns.add(urn);
+        }
+
+        for (Iterator<ResourceUrn> iterator = unreadUrns.iterator(); iterator.hasNext(); ) {
+            ResourceUrn candidate = iterator.next();
+            if (groupLabel.equalsIgnoreCase(candidate.getResourceName().toString())) {
+                iterator.remove();
+                Group group = read(candidate);
+                if (null != group && groupLabel.equals(group.getGroupData().getGroupLabel())) {
+                    return cache(groupLabel, group);
+                }
+                break;
+            }
+        }
+        if (registered.containsKey(groupLabel)) {
+            // Defined in code: reading every unread asset to look for an override is not worth it.
+            return null;
+        }
+        while (!unreadUrns.isEmpty()) {
+            Group group = read(unreadUrns.remove(unreadUrns.size() - 1));
+            if (null != group && groupLabel.equals(group.getGroupData().getGroupLabel())) {
+                return cache(groupLabel, group);
+            }
+        }
+        return null;
+    }
+
+    private Group cache(String groupLabel, Group group) {
+        cache.put(groupLabel, group);
+        trim();
+        return group;
+    }
+
+    private void trim() {
+        while (cache.size() > maxCachedGroups) {
+            cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Loads a group asset and records the label it defines.
+     */
+    @Nullable
+    private Group read(ResourceUrn urn) {
+        Group group = load(urn);
+        if (null != group && null != group.getGroupData()) {
+            reads++;
+            labelUrns.putIfAbsent(group.getGroupData().getGroupLabel(), urn);
+        }
+        return group;
+    }
+
+    @Nullable
+    private Group load(ResourceUrn urn) {
+        try {
+            Group group = assetManager.getAsset(urn, Group.class).orElse(null);
+            return null == group || null == group.getGroupData() ? null : group;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to load group " + urn, e);
+            return null;
+        }
+    }
+
+    private void indexAssets() {
+        cache.clear();
+        labelUrns.clear();
+        unreadUrns.clear();
+        unreadUrns.addAll(assetManager.getAvailableAssets(Group.class));
+        indexed = unreadUrns.size();
+    }
+}
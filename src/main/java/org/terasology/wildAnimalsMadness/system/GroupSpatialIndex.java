@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.logic.behavior.GroupTagComponent;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Answers "which members of group X are near this point" without scanning the group. Every
+ * group label has its own spatial hash grid, kept up to date from GroupTagComponent and
+ * LocationComponent events: a moving entity only costs a grid update, which relinks it when
+ * it crosses a cell boundary. Nearest-member queries fall back to scanning the group when the
+ * nearest members are too far away for the grid to help.
+ * <p>
+ * Queries write into buffers supplied by the caller, so that hive reactions to a stimulus
+ * (a wolf approaching, a player shooting) do not allocate, whatever the size of the group.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(GroupSpatialIndex.class)
+public class GroupSpatialIndex extends BaseComponentSystem {
+
+    private static final float CELL_SIZE = 16f;
+
+    @In
+    private EntityManager entityManager;
+
+    private final Map<String, GroupLabelIndex> labels = new HashMap<>();
+    private final Map<EntityRef, Set<String>> entityLabels = new HashMap<>();
+    private final Vector3f position = new Vector3f();
+    private final EntityRef[] nearest = new EntityRef[1];
+
+    @Override
+    public void postBegin() {
+        for (EntityRef entity : entityManager.getEntitiesWith(GroupTagComponent.class, LocationComponent.class)) {
+            updateLabels(entity, entity.getComponent(GroupTagComponent.class));
+        }
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class, LocationComponent.class})
+    public void onGroupTagActivated(OnActivatedComponent event, EntityRef entity, GroupTagComponent groupTagComponent) {
+        updateLabels(entity, groupTagComponent);
+    }
+
+    @ReceiveEvent(components = GroupTagComponent.class)
+    public void onGroupTagChanged(OnChangedComponent event, EntityRef entity, GroupTagComponent groupTagComponent) {
+        // Entities without a location are not indexed, and are indexed when they get one.
+        if (entity.hasComponent(LocationComponent.class)) {
+            updateLabels(entity, groupTagComponent);
+        }
+    }
+
+    @ReceiveEvent(components = LocationComponent.class)
+    public void onLocationChanged(OnChangedComponent event, EntityRef entity, LocationComponent location) {
+        Set<String> current = entityLabels.get(entity);
+        if (current == null) {
+            return;
+        }
+        location.getWorldPosition(position);
+        for (String label : current) {
+            labels.get(label).put(entity, position.x, position.y, position.z);
+        }
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class, LocationComponent.class})
+    public void onGroupTagDeactivated(BeforeDeactivateComponent event, EntityRef entity) {
+        Set<String> current = entityLabels.remove(entity);
+        if (current != null) {
+            for (String label : current) {
+                removeFromLabel(label, entity);
+            }
+        }
+    }
+
+    @Command(shortDescription = "Counts the members of a group within a radius of a point, and names the nearest one.")
+    public String groupNear(@CommandParam("group") String groupLabel, @CommandParam("x") float x, @CommandParam("y") float y,
+                            @CommandParam("z") float z, @CommandParam("radius") float radius) {
+        if (!(radius > 0) || Float.isInfinite(radius)) {
+            return "The radius must be a positive number.";
+        }
+        Vector3f centre = new Vector3f(x, y, z);
+        int found = countRadius(groupLabel, centre, radius);
+        int nearestFound = queryNearest(groupLabel, centre, 1, nearest);
+        String result = found + " members of '" + groupLabel + "' within " + radius
+                + (nearestFound > 0 ? ", nearest: " + nearest[0].getId() : "");
+        nearest[0] = null;
+        return result;
+    }
+
+    /**
+     * @return the number of members of the group with a known location
+     */
+    public int getMemberCount(String groupLabel) {
+        GroupLabelIndex index = labels.get(groupLabel);
+        return index == null ? 0 : index.size();
+    }
+
+    /**
+     * @return the number of members of the group within {@code radius} of a point
+     */
+    public int countRadius(String groupLabel, Vector3f centre, float radius) {
+        GroupLabelIndex index = labels.get(groupLabel);
+        return index == null ? 0 : index.countRadius(centre.x, centre.y, centre.z, radius);
+    }
+
+    /**
+     * Collects the members of a group within {@code radius} of a point, in no particular order.
+     *
+     * @param out receives the members; results beyond its length are dropped
+     * @return the number of members written to {@code out}
+     */
+    public int queryRadius(String groupLabel, Vector3f centre, float radius, EntityRef[] out) {
+        GroupLabelIndex index = labels.get(groupLabel);
+        return index == null ? 0 : index.queryRadius(centre.x, centre.y, centre.z, radius, out);
+    }
+
+    /**
+     * Collects the {@code k} members of a group nearest to a point, nearest first. The search
+     * radius grows from one grid cell until enough members are found, and falls back to a scan
+     * of the group once a query would cover more cells than the group has members.
+     *
+     * @param out receives the members; at most {@code out.length} are returned
+     * @return the number of members written to {@code out}
+     */
+    public int queryNearest(String groupLabel, Vector3f centre, int k, EntityRef[] out) {
+        GroupLabelIndex index = labels.get(groupLabel);
+        return index == null ? 0 : index.queryNearest(centre.x, centre.y, centre.z, k, out);
+    }
+
+    private void updateLabels(EntityRef entity, GroupTagComponent groupTagComponent) {
+        Set<String> updated = groupTagComponent.groups == null
+                ? Collections.emptySet()
+                : new HashSet<>(groupTagComponent.groups);
+        Set<String> current = entityLabels.computeIfAbsent(entity, key -> new HashSet<>());
+        for (String label : new ArrayList<>(current)) {
+            if (!updated.contains(label)) {
+                current.remove(label);
+                removeFromLabel(label, entity);
+            }
+        }
+        LocationComponent location = entity.getComponent(LocationComponent.class);
+        if (location == null) {
+            return;
+        }
+        location.getWorldPosition(position);
+        for (String label : updated) {
+            current.add(label);
+            labels.computeIfAbsent(label, key -> new GroupLabelIndex(CELL_SIZE)).put(entity, position.x, position.y, position.z);
+        }
+    }
+
+    private void removeFromLabel(String label, EntityRef entity) {
+        GroupLabelIndex index = labels.get(label);
+        if (index != null) {
+            index.remove(entity);
+            if (index.size() == 0) {
+                labels.remove(label);
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.assets.ResourceUrn;
+import org.terasology.assets.management.AssetManager;
+import org.terasology.entitySystem.Component;
+import org.terasology.entitySystem.entity.EntityManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.metadata.ComponentFieldUri;
+import org.terasology.entitySystem.metadata.ComponentMetadata;
+import org.terasology.entitySystem.metadata.FieldMetadata;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.behavior.BehaviorComponent;
+import org.terasology.logic.behavior.GroupMindComponent;
+import org.terasology.logic.behavior.Interpreter;
+import org.terasology.logic.behavior.asset.BehaviorTree;
+import org.terasology.logic.behavior.core.Actor;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.logic.characters.CharacterMoveInputEvent;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.TeraMath;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.minion.move.MinionMoveComponent;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+import org.terasology.rendering.assets.animation.MeshAnimation;
+import org.terasology.rendering.logic.SkeletalMeshComponent;
+import org.terasology.utilities.random.FastRandom;
+import org.terasology.utilities.random.Random;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs a single behavior tree for a whole hive. The tree is ticked once per frame on the
+ * hive entity itself, so its decision nodes are evaluated once per hive; hive actions
+ * ({@code hive_animation}, {@code hive_move}) only record what the members should do.
+ * Every frame, the recorded changes are applied to all members in a single pass, with at
+ * most one write per member and component. The speed set by {@code set_mad_speed} is
+ * shared through {@link HiveSpeedSystem} instead.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(HiveBehaviorSystem.class)
+public class HiveBehaviorSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    private static final Logger logger = LoggerFactory.getLogger(HiveBehaviorSystem.class);
+
+    /**
+     * Behavior given to the members of a collective hive, so that they do not run trees of their own.
+     */
+    private static final String MEMBER_BEHAVIOR = "WildAnimalsMadness:hiveMember";
+
+    @In
+    private AssetManager assetManager;
+    @In
+    private EntityManager entityManager;
+    @In
+    private BehaviorAssignmentSystem behaviorAssignment;
+    @In
+    private MadnessMetrics metrics;
+    @In
+    private HiveSpeedSystem hiveSpeed;
+
+    private final Map<EntityRef, HiveState> states = new HashMap<>();
+    private Random random = new FastRandom();
+    private final Vector3f position = new Vector3f();
+    private final Vector3f drive = new Vector3f();
+    private int saves;
+    private int events;
+    private int touched;
+
+    @Command(shortDescription = "Seeds the random targets and animations of collective hives, so that runs can be repeated.")
+    public String hiveSeed(@CommandParam("seed") int seed) {
+        random = new FastRandom(seed);
+        return "Hive random seed: " + seed;
+    }
+
+    /**
+     * Makes the hive run the given behavior collectively. Its members receive an idle
+     * behavior, and their current one is backed up so that it can be recovered later.
+     *
+     * @return the number of members driven by the hive, or -1 if the behavior could not be resolved
+     */
+    public int runCollective(EntityRef hive, String behavior) {
+        GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
+        BehaviorTree tree = assetManager.getAsset(behavior, BehaviorTree.class).orElse(null);
+        if (null == groupMindComponent || null == tree) {
+            logger.warn("Behavior " + behavior + " could not be run collectively.");
+            return -1;
+        }
+
+        behaviorAssignment.assign(groupMindComponent.groupMembers, MEMBER_BEHAVIOR, null, null, null, null);
+
+        BehaviorComponent behaviorComponent = hive.getComponent(BehaviorComponent.class);
+        boolean hasBehavior = null != behaviorComponent;
+        if (!hasBehavior) {
+            behaviorComponent = new BehaviorComponent();
+        }
+        behaviorComponent.tree = tree;
+        behaviorComponent.interpreter = new Interpreter(new Actor(hive));
+        behaviorComponent.interpreter.setTree(tree);
+        if (hasBehavior) {
+            hive.saveComponent(behaviorComponent);
+        } else {
+            hive.addComponent(behaviorComponent);
+        }
+        states.put(hive, new HiveState());
+        return groupMindComponent.groupMembers.size();
+    }
+
+    /**
+     * Switches the animation of every member of the hive during the next pass. The pools are
+     * read from each member, in the same way as the {@code animation} action does; the fields
+     * are resolved once here rather than once per member.
+     */
+    public void setAnimation(EntityRef hive, @Nullable ComponentFieldUri play, @Nullable ComponentFieldUri loop) {
+        HiveState state = getState(hive);
+        state.play = play;
+        state.loop = loop;
+        state.playField = resolveField(play);
+        state.loopField = resolveField(loop);
+        state.animationPending = true;
+    }
+
+    /**
+     * Moves the hive towards a random location around the centre of its members.
+     *
+     * @param radius the maximum distance between the centre and the target
+     * @param distance the distance at which a member has reached the target
+     * @param arrivalRatio the fraction of members that must reach the target to complete the move
+     * @return false if no member has a location
+     */
+    public boolean startMove(EntityRef hive, float radius, float distance, float arrivalRatio) {
+        GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
+        if (null == groupMindComponent) {
+            return false;
+        }
+        float centreX = 0;
+        float centreY = 0;
+        float centreZ = 0;
+        int located = 0;
+        for (EntityRef member : groupMindComponent.groupMembers) {
+            LocationComponent locationComponent = member.getComponent(LocationComponent.class);
+            if (null != locationComponent) {
+                locationComponent.getWorldPosition(position);
+                centreX += position.x;
+                centreY += position.y;
+                centreZ += position.z;
+                located++;
+            }
+        }
+        if (located == 0) {
+            return false;
+        }
+
+        HiveState state = getState(hive);
+        state.target.set(centreX / located + random.nextFloat(-radius, radius),
+                centreY / located,
+                centreZ / located + random.nextFloat(-radius, radius));
+        state.distance = distance;
+        state.requiredArrivals = Math.max(1, (int) Math.ceil(arrivalRatio * located));
+        state.arrived.clear();
+        state.moving = true;
+        state.stopPending = false;
+        return true;
+    }
+
+    public boolean isMoving(EntityRef hive) {
+        HiveState state = states.get(hive);
+        return null != state && state.moving;
+    }
+
+    public boolean isMoveComplete(EntityRef hive) {
+        HiveState state = states.get(hive);
+        return null != state && state.arrived.size() >= state.requiredArrivals;
+    }
+
+    /**
+     * Stops the members of the hive during the next pass.
+     */
+    public void stopMove(EntityRef hive) {
+        HiveState state = states.get(hive);
+        if (null != state && state.moving) {
+            state.moving = false;
+            state.stopPending = true;
+        }
+    }
+
+    @Override
+    public void update(float delta) {
+        long start = metrics.start();
+        saves = 0;
+        events = 0;
+        touched = 0;
+        Iterator<Map.Entry<EntityRef, HiveState>> iterator = states.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<EntityRef, HiveState> entry = iterator.next();
+            GroupMindComponent groupMindComponent = entry.getKey().getComponent(GroupMindComponent.class);
+            if (null == groupMindComponent) {
+                iterator.remove();
+                continue;
+            }
+            HiveState state = entry.getValue();
+            if (state.hasWork()) {
+                long deltaMs = (long) (delta * 1000);
+                for (EntityRef member : groupMindComponent.groupMembers) {
+                    applyToMember(entry.getKey(), member, state, deltaMs);
+                }
+                state.animationPending = false;
+                if (state.stopPending) {
+                    state.stopPending = false;
+                    state.arrived.clear();
+                }
+            }
+        }
+        metrics.count(MadnessMetrics.Counter.SAVES, saves);
+        metrics.count(MadnessMetrics.Counter.EVENTS, events);
+        metrics.count(MadnessMetrics.Counter.ENTITIES, touched);
+        metrics.stop(MadnessMetrics.Timer.HIVE_SYSTEM, start);
+    }
+
+    private void applyToMember(EntityRef hive, EntityRef member, HiveState state, long deltaMs) {
+        touched++;
+        if (state.animationPending) {
+            applyAnimation(member, state);
+        }
+        if (state.moving) {
+            applyMove(hive, member, state, deltaMs);
+        } else if (state.stopPending && !state.arrived.contains(member)) {
+            member.send(new CharacterMoveInputEvent(0, 0, 0, new Vector3f(), false, false, false, deltaMs));
+            events++;
+        }
+    }
+
+    private void applyAnimation(EntityRef member, HiveState state) {
+        SkeletalMeshComponent skeletalMesh = member.getComponent(SkeletalMeshComponent.class);
+        if (null == skeletalMesh) {
+            return;
+        }
+        if (null != state.play) {
+            List<?> animationListToPlay = (List<?>) readField(member, state.playField);
+            if (null != animationListToPlay && !animationListToPlay.isEmpty()) {
+                skeletalMesh.animation = (MeshAnimation) animationListToPlay.get(random.nextInt(animationListToPlay.size()));
+                skeletalMesh.loop = false;
+            }
+        }
+        if (null != state.loop) {
+            List<?> animationListToLoop = (List<?>) readField(member, state.loopField);
+            if (null != animationListToLoop) {
+                skeletalMesh.animationPool.clear();
+                for (Object animation : animationListToLoop) {
+                    skeletalMesh.animationPool.add((MeshAnimation) animation);
+                }
+                skeletalMesh.loop = true;
+                if (null == state.play) {
+                    skeletalMesh.animation = null;
+                }
+            }
+        }
+        member.saveComponent(skeletalMesh);
+        saves++;
+    }
+
+    @Nullable
+    private ComponentField resolveField(@Nullable ComponentFieldUri uri) {
+        if (null == uri) {
+            return null;
+        }
+        ComponentMetadata<? extends Component> metadata =
+                entityManager.getComponentLibrary().getMetadata(new ResourceUrn(uri.getComponentUri().toString()));
+        FieldMetadata<?, ?> field = null == metadata ? null : metadata.getField(uri.getFieldName());
+        if (null == field) {
+            logger.warn("Component field " + uri + " could not be resolved.");
+            return null;
+        }
+        return new ComponentField(metadata.getType(), field);
+    }
+
+    @Nullable
+    private static Object readField(EntityRef member, @Nullable ComponentField field) {
+        if (null == field) {
+            return null;
+        }
+        Component component = member.getComponent(field.type);
+        return null == component ? null : field.field.getValue(component);
+    }
+
+    private void applyMove(EntityRef hive, EntityRef member, HiveState state, long deltaMs) {
+        LocationComponent locationComponent = member.getComponent(LocationComponent.class);
+        if (null == locationComponent) {
+            return;
+        }
+        locationComponent.getWorldPosition(position);
+        float directionX = state.target.x - position.x;
+        float directionZ = state.target.z - position.z;
+        float distanceSquared = directionX * directionX + directionZ * directionZ;
+
+        if (distanceSquared <= state.distance * state.distance) {
+            if (state.arrived.add(member)) {
+                drive.set(0, 0, 0);
+                member.send(new CharacterMoveInputEvent(0, 0, 0, drive, false, false, false, deltaMs));
+                events++;
+            }
+            return;
+        }
+        state.arrived.remove(member);
+
+        boolean jump = false;
+        MinionMoveComponent moveComponent = member.getComponent(MinionMoveComponent.class);
+        if (null != moveComponent && moveComponent.horizontalCollision) {
+            moveComponent.horizontalCollision = false;
+            member.saveComponent(moveComponent);
+            saves++;
+            jump = true;
+        }
+
+        hiveSpeed.resolve(hive, member);
+        float length = (float) Math.sqrt(distanceSquared);
+        // The event copies the direction, so the vector can be reused for every member.
+        drive.set(directionX / length, 0, directionZ / length);
+        float requestedYaw = 180f + (float) Math.atan2(directionX, directionZ) * TeraMath.RAD_TO_DEG;
+        member.send(new CharacterMoveInputEvent(0, 0, requestedYaw, drive, false, false, jump, deltaMs));
+        events++;
+    }
+
+    private HiveState getState(EntityRef hive) {
+        return states.computeIfAbsent(hive, key -> new HiveState());
+    }
+
+    /**
+     * What the members of a hive were told to do by its tree and have not done yet.
+     */
+    private static final class HiveState {
+        private ComponentFieldUri play;
+        private ComponentFieldUri loop;
+        private ComponentField playField;
+        private ComponentField loopField;
+        private boolean animationPending;
+        private final Vector3f target = new Vector3f();
+        private float distance;
+        private int requiredArrivals;
+        private final Set<EntityRef> arrived = new HashSet<>();
+        private boolean moving;
+        private boolean stopPending;
+
+        private boolean hasWork() {
+            return animationPending || moving || stopPending;
+        }
+    }
+
+    /**
+     * A component field resolved from its URI, read from every member of a hive.
+     */
+    private static final class ComponentField {
+        private final Class<? extends Component> type;
+        private final FieldMetadata<?, ?> field;
+
+        private ComponentField(Class<? extends Component> type, FieldMetadata<?, ?> field) {
+            this.type = type;
+            this.field = field;
+        }
+    }
+}
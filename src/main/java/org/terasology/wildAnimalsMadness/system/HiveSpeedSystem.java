@@ -0,0 +1,232 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.entitySystem.entity.lifecycleEvents.BeforeDeactivateComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnActivatedComponent;
+import org.terasology.entitySystem.entity.lifecycleEvents.OnChangedComponent;
+import org.terasology.entitySystem.event.ReceiveEvent;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.behavior.GroupMindComponent;
+import org.terasology.logic.behavior.GroupTagComponent;
+import org.terasology.logic.characters.CharacterMovementComponent;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.registry.In;
+import org.terasology.registry.Share;
+import org.terasology.wildAnimalsMadness.components.HiveSpeedComponent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Gives hive members the speed multiplier stored in the {@link HiveSpeedComponent} of their
+ * hive, with deferred, rate-limited member saves. The engine reads the multiplier from each
+ * member's CharacterMovementComponent, so every member whose multiplier changes is saved
+ * once. Those saves are not done when the hive's speed is set: a member is saved when its
+ * movement is next computed by the module ({@link #resolve}), or by the background pass in
+ * {@link #update}, and only if its multiplier differs.
+ * <p>
+ * Both paths share a budget of {@link #membersPerFrame} member saves per frame. Members over
+ * the budget keep their old speed until a later frame.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(HiveSpeedSystem.class)
+public class HiveSpeedSystem extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    @In
+    private GroupIndexSystem groupIndex;
+    @In
+    private MadnessMetrics metrics;
+
+    private final Map<EntityRef, Float> hiveSpeeds = new HashMap<>();
+    private final Map<EntityRef, Float> applied = new HashMap<>();
+    private final Set<EntityRef> pendingHives = new LinkedHashSet<>();
+
+    /**
+     * Maximum number of member saves per frame.
+     */
+    private int membersPerFrame = 250;
+
+    /**
+     * Member saves done by {@link #resolve} since the last update.
+     */
+    private int resolvedSaves;
+
+    @Command(shortDescription = "Sets how many hive members get a new speed per frame.")
+    public String hiveSpeedRate(@CommandParam("members") int members) {
+        membersPerFrame = Math.max(1, members);
+        return "Hive speed updates: " + membersPerFrame + " members per frame.";
+    }
+
+    /**
+     * Sets the speed multiplier shared by the members of a hive.
+     */
+    public void setSpeed(EntityRef hive, float speedMultiplier) {
+        HiveSpeedComponent hiveSpeedComponent = hive.getComponent(HiveSpeedComponent.class);
+        if (null == hiveSpeedComponent) {
+            hiveSpeedComponent = new HiveSpeedComponent();
+            hiveSpeedComponent.speedMultiplier = speedMultiplier;
+            hive.addComponent(hiveSpeedComponent);
+        } else if (hiveSpeedComponent.speedMultiplier != speedMultiplier) {
+            hiveSpeedComponent.speedMultiplier = speedMultiplier;
+            hive.saveComponent(hiveSpeedComponent);
+            metrics.count(MadnessMetrics.Counter.SAVES, 1);
+        }
+    }
+
+    /**
+     * Gives a member the speed multiplier of its hive, if it has one and the member does not
+     * have it yet. Called before the member's movement is computed. Does nothing once this
+     * frame's saves are used up; the background pass catches the member up later.
+     */
+    public void resolve(EntityRef member) {
+        if (hiveSpeeds.isEmpty() || resolvedSaves >= membersPerFrame) {
+            return;
+        }
+        for (String label : groupIndex.getGroups(member)) {
+            for (EntityRef hive : groupIndex.getHives(label)) {
+                Float speedMultiplier = hiveSpeeds.get(hive);
+                if (null != speedMultiplier) {
+                    if (apply(member, speedMultiplier)) {
+                        resolvedSaves++;
+                        metrics.count(MadnessMetrics.Counter.SAVES, 1);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #resolve(EntityRef)}, for a member whose hive is already known.
+     */
+    public void resolve(EntityRef hive, EntityRef member) {
+        if (resolvedSaves >= membersPerFrame) {
+            return;
+        }
+        Float speedMultiplier = hiveSpeeds.get(hive);
+        if (null != speedMultiplier && apply(member, speedMultiplier)) {
+            resolvedSaves++;
+            metrics.count(MadnessMetrics.Counter.SAVES, 1);
+        }
+    }
+
+    @Override
+    public void update(float delta) {
+        int resolved = resolvedSaves;
+        resolvedSaves = 0;
+        if (pendingHives.isEmpty()) {
+            return;
+        }
+        long start = metrics.start();
+        int saves = resolved;
+        Iterator<EntityRef> iterator = pendingHives.iterator();
+        while (iterator.hasNext() && saves < membersPerFrame) {
+            EntityRef hive = iterator.next();
+            GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
+            Float speedMultiplier = hiveSpeeds.get(hive);
+            if (null == groupMindComponent || null == speedMultiplier) {
+                iterator.remove();
+                continue;
+            }
+            boolean complete = true;
+            for (EntityRef member : groupMindComponent.groupMembers) {
+                if (saves >= membersPerFrame) {
+                    complete = false;
+                    break;
+                }
+                if (apply(member, speedMultiplier)) {
+                    saves++;
+                }
+            }
+            if (complete) {
+                iterator.remove();
+            }
+        }
+        metrics.count(MadnessMetrics.Counter.SAVES, saves - resolved);
+        metrics.stop(MadnessMetrics.Timer.HIVE_SYSTEM, start);
+    }
+
+    @ReceiveEvent(components = {HiveSpeedComponent.class})
+    public void onHiveSpeedActivated(OnActivatedComponent event, EntityRef hive, HiveSpeedComponent hiveSpeedComponent) {
+        updateHive(hive, hiveSpeedComponent);
+    }
+
+    @ReceiveEvent(components = {HiveSpeedComponent.class})
+    public void onHiveSpeedChanged(OnChangedComponent event, EntityRef hive, HiveSpeedComponent hiveSpeedComponent) {
+        updateHive(hive, hiveSpeedComponent);
+    }
+
+    @ReceiveEvent(components = {HiveSpeedComponent.class})
+    public void onHiveSpeedDeactivated(BeforeDeactivateComponent event, EntityRef hive) {
+        hiveSpeeds.remove(hive);
+        pendingHives.remove(hive);
+    }
+
+    @ReceiveEvent(components = {GroupTagComponent.class})
+    public void onMemberDeactivated(BeforeDeactivateComponent event, EntityRef member) {
+        applied.remove(member);
+    }
+
+    /**
+     * Forgets the multiplier given to a member when something else changes it, so that the
+     * member gets its hive's multiplier back the next time it is resolved.
+     */
+    @ReceiveEvent(components = {CharacterMovementComponent.class, GroupTagComponent.class})
+    public void onMemberMovementChanged(OnChangedComponent event, EntityRef member,
+                                        CharacterMovementComponent characterMovementComponent) {
+        Float current = applied.get(member);
+        if (null != current && current != characterMovementComponent.speedMultiplier) {
+            applied.remove(member);
+        }
+    }
+
+    private void updateHive(EntityRef hive, HiveSpeedComponent hiveSpeedComponent) {
+        Float previous = hiveSpeeds.put(hive, hiveSpeedComponent.speedMultiplier);
+        if (null == previous || previous != hiveSpeedComponent.speedMultiplier) {
+            pendingHives.add(hive);
+        }
+    }
+
+    /**
+     * @return true if the member's movement component had to be saved
+     */
+    private boolean apply(EntityRef member, float speedMultiplier) {
+        Float current = applied.get(member);
+        if (null != current && current == speedMultiplier) {
+            return false;
+        }
+        CharacterMovementComponent characterMovementComponent = member.getComponent(CharacterMovementComponent.class);
+        if (null == characterMovementComponent) {
+            return false;
+        }
+        applied.put(member, speedMultiplier);
+        if (characterMovementComponent.speedMultiplier == speedMultiplier) {
+            return false;
+        }
+        characterMovementComponent.speedMultiplier = speedMultiplier;
+        member.saveComponent(characterMovementComponent);
+        return true;
+    }
+}
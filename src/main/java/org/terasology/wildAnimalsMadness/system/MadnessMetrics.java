@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.terasology.entitySystem.systems.BaseComponentSystem;
+import org.terasology.entitySystem.systems.RegisterMode;
+import org.terasology.entitySystem.systems.RegisterSystem;
+import org.terasology.entitySystem.systems.UpdateSubscriberSystem;
+import org.terasology.logic.console.commandSystem.annotations.Command;
+import org.terasology.logic.console.commandSystem.annotations.CommandParam;
+import org.terasology.registry.Share;
+
+import java.util.Arrays;
+
+/**
+ * Collects timings of the module's systems and actions, and counts the component saves,
+ * events and entities they cause per tick. Collection is off by default; while it is off,
+ * {@link #start()} returns 0 and the other calls return right away, so instrumented code
+ * pays a single branch.
+ * <p>
+ * Typical use:
+ * <pre>
+ * long start = metrics.start();
+ * ...
+ * metrics.stop(MadnessMetrics.Timer.FLOCK_SYSTEM, start);
+ * </pre>
+ * All calls must be made from the main thread.
+ */
+@RegisterSystem(RegisterMode.AUTHORITY)
+@Share(MadnessMetrics.class)
+public class MadnessMetrics extends BaseComponentSystem implements UpdateSubscriberSystem {
+
+    public enum Timer {
+        FLOCK_SYSTEM("FlockSystem.update"),
+        HIVE_SYSTEM("HiveBehaviorSystem.update"),
+        ASSIGNMENT_SYSTEM("BehaviorAssignmentSystem"),
+        GROUP_INDEX_SYSTEM("GroupIndexSystem.update"),
+        MADNESS_COMMANDS("MadnessSystem commands"),
+        BULK_DESTROY("BulkDestroySystem.update"),
+        FLOCK_MOVE_ACTION("flock_move"),
+        SET_MAD_SPEED_ACTION("set_mad_speed");
+
+        private final String label;
+
+        Timer(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Counter {
+        SAVES("saveComponent calls"),
+        EVENTS("events sent"),
+        ENTITIES("entities touched");
+
+        private final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(MadnessMetrics.class);
+
+    private final TimingHistogram[] timers = new TimingHistogram[Timer.values().length];
+    private final long[] tickCounts = new long[Counter.values().length];
+    private final long[] totalCounts = new long[Counter.values().length];
+    private final long[] maxCounts = new long[Counter.values().length];
+    private long ticks;
+
+    private boolean enabled;
+
+    /**
+     * Seconds between two reports in the log. Non-positive values disable logging.
+     */
+    private float logInterval;
+    private float sinceLastLog;
+
+    public MadnessMetrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new TimingHistogram();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the current time in nanoseconds, or 0 if collection is off
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time elapsed since {@code start}, unless it came from a disabled {@link #start()}.
+     */
+    public void stop(Timer timer, long start) {
+        if (start != 0L) {
+            timers[timer.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public void count(Counter counter, long amount) {
+        if (enabled) {
+            tickCounts[counter.ordinal()] += amount;
+        }
+    }
+
+    @Override
+    public void update(float delta) {
+        if (!enabled) {
+            return;
+        }
+        ticks++;
+        for (int i = 0; i < tickCounts.length; i++) {
+            totalCounts[i] += tickCounts[i];
+            maxCounts[i] = Math.max(maxCounts[i], tickCounts[i]);
+            tickCounts[i] = 0;
+        }
+        if (logInterval > 0) {
+            sinceLastLog += delta;
+            if (sinceLastLog >= logInterval) {
+                sinceLastLog = 0;
+                logger.info(report());
+            }
+        }
+    }
+
+    @Command(shortDescription = "Shows timings of the madness systems and actions, and what they touch per tick.")
+    public String madnessStats() {
+        return report();
+    }
+
+    @Command(shortDescription = "Turns the collection of madness statistics on or off.")
+    public String madnessStatsEnable(@CommandParam("enabled") boolean enable) {
+        enabled = enable;
+        return "Madness statistics " + (enabled ? "enabled." : "disabled.");
+    }
+
+    @Command(shortDescription = "Clears the madness statistics.")
+    public String madnessStatsReset() {
+        for (TimingHistogram timer : timers) {
+            timer.reset();
+        }
+        Arrays.fill(tickCounts, 0);
+        Arrays.fill(totalCounts, 0);
+        Arrays.fill(maxCounts, 0);
+        ticks = 0;
+        return "Madness statistics cleared.";
+    }
+
+    @Command(shortDescription = "Logs the madness statistics every given number of seconds. Use 0 to stop logging.")
+    public String madnessStatsLog(@CommandParam("seconds") float seconds) {
+        logInterval = seconds;
+        sinceLastLog = 0;
+        return seconds > 0 ? "Madness statistics are logged every " + seconds + " s." : "Madness statistics are not logged.";
+    }
+
+    private String report() {
+        StringBuilder builder = new StringBuilder("Madness statistics (")
+                .append(enabled ? "enabled" : "disabled").append(", ").append(ticks).append(" ticks):");
+        for (Timer timer : Timer.values()) {
+            TimingHistogram histogram = timers[timer.ordinal()];
+            if (histogram.getCount() > 0) {
+                builder.append(String.format("%n  %s: %d calls, mean %.3f ms, p50 < %.3f ms, p99 < %.3f ms, max %.3f ms",
+                        timer.label, histogram.getCount(), histogram.getMeanMillis(), histogram.getPercentileMillis(50),
+                        histogram.getPercentileMillis(99), histogram.getMaxMillis()));
+            }
+        }
+        for (Counter counter : Counter.values()) {
+            int index = counter.ordinal();
+            builder.append(String.format("%n  %s: %.1f per tick, max %d, total %d", counter.label,
+                    ticks == 0 ? 0f : (float) totalCounts[index] / ticks, maxCounts[index], totalCounts[index]));
+        }
+        return builder.toString();
+    }
+}
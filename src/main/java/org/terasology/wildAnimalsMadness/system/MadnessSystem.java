@@ -15,23 +15,15 @@
  */
 package org.terasology.wildAnimalsMadness.system;
 
-import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.terasology.assets.ResourceUrn;
 import org.terasology.assets.management.AssetManager;
-import org.terasology.audio.StaticSound;
 import org.terasology.entitySystem.Component;
 import org.terasology.logic.behavior.BehaviorComponent;
 import org.terasology.logic.behavior.CollectiveBehaviorComponent;
 import org.terasology.logic.behavior.CollectiveInterpreter;
-import org.terasology.logic.behavior.Interpreter;
 import org.terasology.logic.behavior.asset.BehaviorTree;
 import org.terasology.logic.behavior.core.Actor;
-import org.terasology.logic.characters.CharacterMovementComponent;
-import org.terasology.rendering.logic.SkeletalMeshComponent;
-import org.terasology.utilities.Assets;
-import org.terasology.logic.behavior.asset.Group;
 import org.terasology.logic.behavior.asset.GroupData;
 import org.terasology.wildAnimalsMadness.components.FlockComponent;
 import org.terasology.logic.behavior.GroupTagComponent;
@@ -46,6 +38,7 @@ import org.terasology.logic.behavior.GroupMindComponent;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.function.Supplier;
 
 @RegisterSystem(RegisterMode.AUTHORITY)
 public class MadnessSystem extends BaseComponentSystem {
@@ -55,52 +48,43 @@ public class MadnessSystem extends BaseComponentSystem {
     private EntityManager entityManager;
     @In
     private AssetManager assetManager;
+    @In
+    private GroupIndexSystem groupIndex;
+    @In
+    private HiveBehaviorSystem hiveBehavior;
+    @In
+    private MadnessMetrics metrics;
+    @In
+    private BehaviorAssignmentSystem behaviorAssignment;
+    @In
+    private GroupRegistry groupRegistry;
+    @In
+    private HiveSpeedSystem hiveSpeed;
+    @In
+    private BulkDestroySystem bulkDestroy;
 
-    private final Map<String, Group> groupsFromAssets = new HashMap<>();
-    private final Map<String, GroupData> groups = new HashMap<>();
     private final Map<String, EntityRef> hives = new HashMap<>();
 
-    @Override
-    public void initialise() {
-        /**
-         * Loads all Group (.group) assets registered
-         */
-        List<ResourceUrn> uris = Lists.newArrayList();
-        uris.addAll(new ArrayList<>(assetManager.getAvailableAssets(StaticSound.class)));
-
-        for (ResourceUrn uri : assetManager.getAvailableAssets(Group.class)) {
-            try {
-                Optional<Group> asset = assetManager.getAsset(uri, Group.class);
-                asset.ifPresent(group -> groupsFromAssets.put(group.getGroupData().getGroupLabel(), group));
-            } catch (RuntimeException e) {
-                logger.info("Failed to load groups.", uri, e);
-            }
-        }
-
-    }
-
     /**
-     * Manually populates the groups map using GroupData
+     * Registers the test groups using GroupData
      * Group "magenta" is loaded from disk if the correspondent
      * file (magenta.group) is available. This serves as a
      * test for the new group asset as well.
      */
     @Command(shortDescription = "Initialise test data")
     public String loadTestData() {
-        groups.put("yellow", new GroupData("yellow", false, "Behaviors:critter"));
+        groupRegistry.register(new GroupData("yellow", false, "Behaviors:critter"));
         logger.info("Group: yellow registered");
-        groups.put("cyan", new GroupData("cyan", true, "Behaviors:critter"));
+        groupRegistry.register(new GroupData("cyan", true, "Behaviors:critter"));
         logger.info("Group: cyan registered");
-        if((!groupsFromAssets.isEmpty()) && groupsFromAssets.containsKey("magenta")) {
-            groups.put("magenta", groupsFromAssets.get("magenta").getGroupData());
+        groupRegistry.register(new GroupData("magenta", true, "Behaviors:critter"));
+        if(groupRegistry.hasAsset("magenta")) {
             logger.info("Group: magenta loaded from disk");
-
         } else {
-            groups.put("magenta", new GroupData("magenta", true, "Behaviors:critter"));
             logger.info("Group: magenta registered");
         }
 
-        groups.put("black", new GroupData("black", false, "flock"));
+        groupRegistry.register(new GroupData("black", false, "flock"));
         logger.info("Group: black registered");
 
         //Creates all necessary hives
@@ -131,7 +115,7 @@ public class MadnessSystem extends BaseComponentSystem {
      */
     @Command(shortDescription = "First group test: assigns the 'critter' behavior to multiple entities tagged in the 'yellow' group.")
     public String groupTestOne() {
-        GroupData groupData = groups.get("yellow");
+        GroupData groupData = groupRegistry.getGroupData("yellow");
         assignBehaviorToAll(groupData.getGroupLabel(), groupData.getBehavior(), "magentaDeerSkin");
         return "Your should have a magenta deer party by now.";
     }
@@ -209,6 +193,28 @@ public class MadnessSystem extends BaseComponentSystem {
         return "Your should be **really** happy if this works.";
     }
 
+    /**
+     * Collective Hive Test:
+     * Objective: run a single BT for the whole hive. The 'magenta' hive runs the
+     * 'WildAnimalsMadness:hive' BT itself through the HiveBehaviorSystem: its decisions
+     * are taken once per tick for the whole hive, and the resulting actions are applied
+     * to every member. Members receive an idle BT meanwhile; their own one is backed up.
+     * Restrictions: members blocked by terrain may not reach the common target.
+     * Conditions: use in conjunction with magentaDeers or cyanDeers.
+     * @return success message
+     */
+    @Command(shortDescription = "Collective hive test: the 'magenta' hive runs a single BT for all of its members, and its actions are applied to every member.")
+    public String groupTestHive() {
+        EntityRef hiveEntity = hives.get("magenta");
+        populateHive(hiveEntity, null);
+
+        int members = hiveBehavior.runCollective(hiveEntity, "WildAnimalsMadness:hive");
+        if (members < 0) {
+            return "The hive behavior could not be found.";
+        }
+        return members + " entities now share a single mind.";
+    }
+
     /**
      * Fourth Group Test:
      * Objective: restore the original behavior state of an entity
@@ -235,12 +241,10 @@ public class MadnessSystem extends BaseComponentSystem {
      * Objective: test the flocking behavior. Black deers are assigned
      * a FlockComponent and a flock behavior. The related system makes sure
      * that the flock parameters are updated whenever a new entity receives
-     * a FlockComponent. Flocking behavior should make the entities converge
-     * to the group center (randomized for emergence emulation).
-     * Restrictions: this is very early work. The entities still don't keep
-     * a minimal distance from each other. Since the flocking algorithm
-     * uses a random reference to establish the group center, flocks
-     * tend to get stable in one location until a new entity joins the flock.
+     * a FlockComponent. Flocking behavior steers every entity using its own
+     * neighbours: separation keeps a minimal distance between them, alignment
+     * matches their heading and cohesion pulls them towards their local centre.
+     * The weights of each rule are defined in the FlockComponent.
      * This test is composed by two steps: in the first one the user spawns a few
      * black deers. Executing the command creates the flock. In the second step,
      * the user spawns an additional black deer, and re-running the command
@@ -249,8 +253,8 @@ public class MadnessSystem extends BaseComponentSystem {
      */
     @Command(shortDescription = "Fifth group test: flocking. Here all the black deers become a flock.")
     public String groupTestFive() {
-        GroupData groupData = groups.get("black");
-        assignComponentBehaviorToAll(groupData.getGroupLabel(), groupData.getBehavior(), new FlockComponent(), "cyanDeerSkin");
+        GroupData groupData = groupRegistry.getGroupData("black");
+        assignComponentBehaviorToAll(groupData.getGroupLabel(), groupData.getBehavior(), FlockComponent.class, FlockComponent::new, "cyanDeerSkin");
         return "Cozy, just like hell.";
     }
 
@@ -258,42 +262,39 @@ public class MadnessSystem extends BaseComponentSystem {
     /**
      * Nuke Command:
      * Objective: clean-up a saved game, removing all group-related
-     * entities.
+     * entities. Hives go first, then their members; the entities are
+     * destroyed over several frames by the BulkDestroySystem
+     * (see destroyProgress and destroyCancel).
      * @return success message
      */
     @Command(shortDescription = "Clean-up.")
     public String nuke() {
-        for (EntityRef entityRef : entityManager.getEntitiesWith(GroupMindComponent.class)) {
-            entityRef.destroy();
-        }
-
-        for (EntityRef entityRef : entityManager.getEntitiesWith(GroupTagComponent.class)) {
-            entityRef.destroy();
-        }
+        long start = metrics.start();
+        int queued = bulkDestroy.destroyAll("nuke", GroupMindComponent.class, GroupTagComponent.class);
+        metrics.stop(MadnessMetrics.Timer.MADNESS_COMMANDS, start);
 
-        return "The hives are dead. LONG LIVE THE PHALANX";
+        return "The hives are dying (" + queued + " entities). LONG LIVE THE PHALANX";
     }
 
     @Command(shortDescription = "Clean-up sentient entities.")
     public String terminate() {
-        for (EntityRef entityRef : entityManager.getEntitiesWith(BehaviorComponent.class)) {
-            entityRef.destroy();
-        }
+        long start = metrics.start();
+        int queued = bulkDestroy.destroyAll("terminate", BehaviorComponent.class);
+        metrics.stop(MadnessMetrics.Timer.MADNESS_COMMANDS, start);
 
-        return "They will not be back.";
+        return "They will not be back (" + queued + " entities).";
     }
 
     private void initHives() {
-        if(!groups.isEmpty()) {
-            for( String groupLabel : groups.keySet()) {
-                if(groups.get(groupLabel).needsHive) {
-                    EntityRef hiveEntity = entityManager.create("hiveEntity");
-                    GroupMindComponent hivemindComponent = hiveEntity.getComponent(GroupMindComponent.class);
-                    hivemindComponent.groupLabel = groupLabel;
-                    hivemindComponent.behavior = groups.get(groupLabel).getBehavior();
-                    hiveEntity.saveComponent(hivemindComponent);
-                    hives.put(groupLabel,hiveEntity);
-                }
+        for( String groupLabel : groupRegistry.getRegisteredLabels()) {
+            GroupData groupData = groupRegistry.getGroupData(groupLabel);
+            if(groupData.needsHive) {
+                EntityRef hiveEntity = entityManager.create("hiveEntity");
+                GroupMindComponent hivemindComponent = hiveEntity.getComponent(GroupMindComponent.class);
+                hivemindComponent.groupLabel = groupLabel;
+                hivemindComponent.behavior = groupData.getBehavior();
+                hiveEntity.saveComponent(hivemindComponent);
+                hives.put(groupLabel,hiveEntity);
             }
         }
 
@@ -302,69 +303,31 @@ public class MadnessSystem extends BaseComponentSystem {
 
     /**
      * Assign the same behavior to all entities with the same group label.
+     * Large groups are spread over several frames by the BehaviorAssignmentSystem.
      *
      * @param groupLabel
      * @param behavior
      * @param newGroupSkin
      */
     private void assignBehaviorToAll(String groupLabel, String behavior, @Nullable String newGroupSkin) {
-        for (EntityRef entityRef : entityManager.getEntitiesWith(GroupTagComponent.class)) {
-            if (entityRef.getComponent(GroupTagComponent.class).groups.contains(groupLabel)) {
-                assignBehaviorToEntity(entityRef, behavior, newGroupSkin);
-            }
-        }
+        behaviorAssignment.assign(groupIndex.getMembers(groupLabel), behavior, newGroupSkin, null, null,
+                assigned -> logger.info("Group: " + groupLabel + " assigned behavior " + behavior + " to " + assigned + " members."));
     }
 
     /**
      * Assign the same behavior and a specific component to all entities with the same group label.
+     * Every entity lacking the component receives its own instance from the factory.
      *
      * @param groupLabel
      * @param behavior
-     * @param component
+     * @param componentType
+     * @param componentFactory
      * @param newGroupSkin
      */
-    private void assignComponentBehaviorToAll(String groupLabel, String behavior, Component component, @Nullable String newGroupSkin) {
-        for (EntityRef entityRef : entityManager.getEntitiesWith(GroupTagComponent.class)) {
-            if (entityRef.getComponent(GroupTagComponent.class).groups.contains(groupLabel)) {
-                if(!entityRef.hasComponent(component.getClass())) {
-                    entityRef.saveComponent(component);
-                }
-
-                assignBehaviorToEntity(entityRef, behavior, newGroupSkin);
-            }
-        }
-    }
-
-    private void assignBehaviorToEntity(EntityRef entityRef, String behavior, @Nullable String newGroupSkin) {
-
-        if(entityRef.hasComponent(SkeletalMeshComponent.class) && null != newGroupSkin) {
-            SkeletalMeshComponent skeletalComponent = entityRef.getComponent(SkeletalMeshComponent.class);
-            skeletalComponent.material = Assets.getMaterial(newGroupSkin).get();
-            entityRef.saveComponent(skeletalComponent);
-        }
-
-        BehaviorTree groupBT = assetManager.getAsset(behavior, BehaviorTree.class).get();
-
-        if(null != groupBT) {
-            BehaviorComponent behaviorComponent = new BehaviorComponent();
-
-            if (entityRef.hasComponent(BehaviorComponent.class)) {
-                behaviorComponent = entityRef.getComponent(BehaviorComponent.class);
-
-                GroupTagComponent groupTagComponent = entityRef.getComponent(GroupTagComponent.class);
-
-                groupTagComponent.backupBT = behaviorComponent.tree;
-                groupTagComponent.backupRunningState = new Interpreter(behaviorComponent.interpreter);
-                entityRef.saveComponent(groupTagComponent);
-            }
-
-            behaviorComponent.tree = groupBT;
-            behaviorComponent.interpreter = new Interpreter(new Actor(entityRef));
-            behaviorComponent.interpreter.setTree(groupBT);
-
-            entityRef.saveComponent(behaviorComponent);
-        }
-
+    private <T extends Component> void assignComponentBehaviorToAll(String groupLabel, String behavior, Class<T> componentType,
+                                                                    Supplier<? extends T> componentFactory, @Nullable String newGroupSkin) {
+        behaviorAssignment.assign(groupIndex.getMembers(groupLabel), behavior, newGroupSkin, componentType, componentFactory,
+                assigned -> logger.info("Group: " + groupLabel + " assigned behavior " + behavior + " to " + assigned + " members."));
     }
 
     private void populateHive(String groupLabel, String newSkin) {
@@ -374,35 +337,28 @@ public class MadnessSystem extends BaseComponentSystem {
         }
     }
 
+    /**
+     * Hive members are kept in sync with their group by the GroupIndexSystem, so populating
+     * a hive only assigns the hive behavior (and skin) to its current members.
+     *
+     * @param hive
+     * @param newSkin
+     */
     private void populateHive(EntityRef hive, @Nullable String newSkin) {
         GroupMindComponent groupMindComponent = hive.getComponent(GroupMindComponent.class);
-        for (EntityRef entityRef : entityManager.getEntitiesWith(GroupTagComponent.class)) {
-            GroupTagComponent groupTagComponent = entityRef.getComponent(GroupTagComponent.class);
-            if (groupTagComponent.groups.contains(groupMindComponent.groupLabel)) {
-                if(null != newSkin) {
-                    assignBehaviorToEntity(entityRef, groupMindComponent.behavior, newSkin);
-                }
-                groupMindComponent.groupMembers.add(entityRef);
-            }
+        if(null != newSkin) {
+            behaviorAssignment.assign(groupMindComponent.groupMembers, groupMindComponent.behavior, newSkin, null, null, null);
         }
-        hive.saveComponent(groupMindComponent);
         logger.info("Hive: " + groupMindComponent.groupLabel + " populated with "
                 + groupMindComponent.groupMembers.size() + " members.");
     }
 
     private void updateSpeedToAll(EntityRef hiveEntity) {
+        long start = metrics.start();
         if(hiveEntity.hasComponent(GroupMindComponent.class)) {
-            GroupMindComponent groupMindComponent = hiveEntity.getComponent(GroupMindComponent.class);
-
-            if(!groupMindComponent.groupMembers.isEmpty()) {
-                for (EntityRef entityRef : groupMindComponent.groupMembers) {
-                    CharacterMovementComponent characterMovementComponent = entityRef.getComponent(CharacterMovementComponent.class);
-                    characterMovementComponent.speedMultiplier = 2.5f;
-                    entityRef.saveComponent(characterMovementComponent);
-                }
-            }
+            hiveSpeed.setSpeed(hiveEntity, 2.5f);
         }
-
+        metrics.stop(MadnessMetrics.Timer.MADNESS_COMMANDS, start);
     }
 
     private Set<Actor> getActorsFromHive(EntityRef hiveEntity) {
@@ -421,27 +377,38 @@ public class MadnessSystem extends BaseComponentSystem {
     }
 
     private void recoverBehaviorBackup(String groupLabel) {
-        for (EntityRef entityRef : entityManager.getEntitiesWith(GroupTagComponent.class)) {
+        long start = metrics.start();
+        for (EntityRef entityRef : getGroupMembers(groupLabel)) {
+            metrics.count(MadnessMetrics.Counter.ENTITIES, 1);
             GroupTagComponent groupTagComponent = entityRef.getComponent(GroupTagComponent.class);
 
-            if (groupTagComponent.groups.contains(groupLabel)) {
+            if((null != groupTagComponent.backupBT) && (null != groupTagComponent.backupRunningState)) {
 
-                if((null != groupTagComponent.backupBT) && (null != groupTagComponent.backupRunningState)) {
+                if(entityRef.hasComponent(BehaviorComponent.class)) {
+                    entityRef.removeComponent(BehaviorComponent.class);
 
-                    if(entityRef.hasComponent(BehaviorComponent.class)) {
-                        entityRef.removeComponent(BehaviorComponent.class);
+                    BehaviorComponent behaviorComponent = new BehaviorComponent();
+                    behaviorComponent.tree = groupTagComponent.backupBT;
+                    behaviorComponent.interpreter = groupTagComponent.backupRunningState;
+                    behaviorComponent.interpreter.setTree(groupTagComponent.backupBT);
 
-                        BehaviorComponent behaviorComponent = new BehaviorComponent();
-                        behaviorComponent.tree = groupTagComponent.backupBT;
-                        behaviorComponent.interpreter = groupTagComponent.backupRunningState;
-                        behaviorComponent.interpreter.setTree(groupTagComponent.backupBT);
+                    entityRef.saveComponent(behaviorComponent);
+                    metrics.count(MadnessMetrics.Counter.SAVES, 1);
 
-                        entityRef.saveComponent(behaviorComponent);
-
-                    }
                 }
-
             }
         }
+        metrics.stop(MadnessMetrics.Timer.MADNESS_COMMANDS, start);
+    }
+
+    /**
+     * Returns the current members of a group from the group index. The result is a copy,
+     * so callers can modify the members' components while iterating.
+     *
+     * @param groupLabel
+     * @return the entities tagged with the group label
+     */
+    private List<EntityRef> getGroupMembers(String groupLabel) {
+        return new ArrayList<>(groupIndex.getMembers(groupLabel));
     }
 }
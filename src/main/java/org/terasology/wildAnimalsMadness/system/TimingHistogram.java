@@ -0,0 +1,75 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations with power-of-two buckets, from under a microsecond up to about a
+ * second. Recording a duration does not allocate.
+ */
+class TimingHistogram {
+
+    private static final int BUCKETS = 22;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final long[] buckets = new long[BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    void record(long nanos) {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos / NANOS_PER_MICRO);
+        buckets[Math.min(bucket, BUCKETS - 1)]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getMeanMillis() {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * @return the upper bound, in milliseconds, of the bucket holding the given percentile
+     */
+    double getPercentileMillis(double percentile) {
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank && seen > 0) {
+                return bucket == BUCKETS - 1 ? getMaxMillis() : (1L << bucket) / 1e3;
+            }
+        }
+        return 0;
+    }
+
+    void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.spatial;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialHashGridTest {
+
+    private static final int HANDLES = 400;
+    private static final int OPERATIONS = 20000;
+
+    @Test
+    public void queriesMatchBruteForceScan() {
+        Random random = new Random(42);
+        SpatialHashGrid grid = new SpatialHashGrid(4f);
+        float[][] positions = new float[HANDLES][];
+
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int roll = random.nextInt(100);
+            int handle = random.nextInt(HANDLES);
+            if (roll < 55) {
+                // Mostly small moves, so that handles both stay in and cross their cell.
+                float[] position = positions[handle];
+                if (null == position || random.nextInt(4) == 0) {
+                    position = randomPosition(random);
+                } else {
+                    position = new float[]{position[0] + random.nextFloat() - 0.5f,
+                            position[1] + random.nextFloat() - 0.5f,
+                            position[2] + random.nextFloat() - 0.5f};
+                }
+                positions[handle] = position;
+                grid.put(handle, position[0], position[1], position[2]);
+            } else if (roll < 70) {
+                positions[handle] = null;
+                grid.remove(handle);
+            } else if (roll < 72) {
+                grid.setCellSize(0.05f + random.nextFloat() * 20f);
+            } else {
+                float[] centre = randomPosition(random);
+                float radius = random.nextFloat() * 30f;
+                assertQueryMatches(grid, positions, centre, radius);
+            }
+            assertEquals(countPresent(positions), grid.size());
+        }
+    }
+
+    @Test
+    public void smallCellsWithLargeRadiusStayCorrect() {
+        Random random = new Random(7);
+        SpatialHashGrid grid = new SpatialHashGrid(0.1f);
+        float[][] positions = new float[50][];
+        for (int handle = 0; handle < positions.length; handle++) {
+            positions[handle] = randomPosition(random);
+            grid.put(handle, positions[handle][0], positions[handle][1], positions[handle][2]);
+        }
+        assertQueryMatches(grid, positions, new float[]{0, 0, 0}, 1000f);
+        assertQueryMatches(grid, positions, positions[3], 10f);
+    }
+
+    @Test
+    public void hugeAndInfiniteRadiiScanEveryHandle() {
+        Random random = new Random(3);
+        SpatialHashGrid grid = new SpatialHashGrid(0.5f);
+        float[][] positions = new float[20][];
+        for (int handle = 0; handle < positions.length; handle++) {
+            positions[handle] = randomPosition(random);
+            grid.put(handle, positions[handle][0], positions[handle][1], positions[handle][2]);
+        }
+        assertQueryMatches(grid, positions, new float[]{0, 0, 0}, 1e30f);
+        assertQueryMatches(grid, positions, new float[]{0, 0, 0}, Float.POSITIVE_INFINITY);
+        assertEquals(0, grid.query(0, 0, 0, Float.NaN, new int[positions.length]));
+    }
+
+    @Test
+    public void queryStopsWhenOutputIsFull() {
+        SpatialHashGrid grid = new SpatialHashGrid(1f);
+        for (int handle = 0; handle < 10; handle++) {
+            grid.put(handle, handle * 0.1f, 0, 0);
+        }
+        int[] out = new int[4];
+        assertEquals(4, grid.query(0, 0, 0, 5f, out));
+    }
+
+    @Test
+    public void removedHandlesAreNotReturned() {
+        SpatialHashGrid grid = new SpatialHashGrid(2f);
+        grid.put(1, 0, 0, 0);
+        grid.put(2, 1, 0, 0);
+        grid.remove(1);
+        grid.remove(1);
+
+        assertFalse(grid.contains(1));
+        assertTrue(grid.contains(2));
+        int[] out = new int[4];
+        assertEquals(1, grid.query(0, 0, 0, 3f, out));
+        assertEquals(2, out[0]);
+    }
+
+    private static void assertQueryMatches(SpatialHashGrid grid, float[][] positions, float[] centre, float radius) {
+        int[] out = new int[positions.length];
+        int count = grid.query(centre[0], centre[1], centre[2], radius, out);
+        int[] actual = Arrays.copyOf(out, count);
+        Arrays.sort(actual);
+
+        int[] expected = new int[positions.length];
+        int expectedCount = 0;
+        float radiusSquared = radius * radius;
+        for (int handle = 0; handle < positions.length; handle++) {
+            float[] position = positions[handle];
+            if (null == position) {
+                continue;
+            }
+            float dx = position[0] - centre[0];
+            float dy = position[1] - centre[1];
+            float dz = position[2] - centre[2];
+            if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                expected[expectedCount++] = handle;
+            }
+        }
+        assertArrayEquals(Arrays.copyOf(expected, expectedCount), actual);
+    }
+
+    private static float[] randomPosition(Random random) {
+        return new float[]{(random.nextFloat() - 0.5f) * 100f,
+                (random.nextFloat() - 0.5f) * 20f,
+                (random.nextFloat() - 0.5f) * 100f};
+    }
+
+    private static int countPresent(float[][] positions) {
+        int count = 0;
+        for (float[] position : positions) {
+            if (null != position) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
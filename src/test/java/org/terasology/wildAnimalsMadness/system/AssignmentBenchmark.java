@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.assets.management.AssetManager;
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.logic.behavior.BehaviorComponent;
+import org.terasology.logic.behavior.GroupTagComponent;
+import org.terasology.logic.behavior.Interpreter;
+import org.terasology.logic.behavior.asset.BehaviorTree;
+import org.terasology.logic.behavior.core.Actor;
+import org.terasology.wildAnimalsMadness.components.FlockComponent;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures the batched group behavior assignment of {@link BehaviorAssignmentSystem}, as run by
+ * {@code MadnessSystem.assignComponentBehaviorToAll} for the fifth group test, on stub entities
+ * that already run a behavior: every entity gets its behavior backed up, a new behavior and a
+ * {@link FlockComponent}. The entities
+ * only return their components; saving and adding components cost nothing, so the results are
+ * the cost of the assignment itself. A frame is the call to {@code assign} or one update.
+ * <p>
+ * Run {@link #main} from the test classpath, with the number of measured rounds as its only
+ * argument (10 by default), and compare the results with {@code benchmarks/baseline.txt}, or
+ * before and after a change on the same machine.
+ */
+public final class AssignmentBenchmark {
+
+    private static final int[] SIZES = {1000, 10000, 50000};
+    private static final int DEFAULT_ROUNDS = 10;
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ENTITIES_PER_FRAME = 250;
+    private static final float FRAME_SECONDS = 1 / 60f;
+    private static final String BEHAVIOR = "WildAnimalsMadness:benchmark";
+
+    private AssignmentBenchmark() {
+    }
+
+    public static void main(String[] args) throws ReflectiveOperationException {
+        int rounds = args.length > 0 ? Math.max(1, Integer.parseInt(args[0])) : DEFAULT_ROUNDS;
+        System.out.println("Group behavior assignment benchmark, " + rounds + " rounds of "
+                + ENTITIES_PER_FRAME + " entities per frame:");
+        for (int entities : SIZES) {
+            System.out.println("  " + run(entities, rounds));
+        }
+    }
+
+    /**
+     * Assigns a behavior to the same entities for the given number of rounds.
+     *
+     * @param entities the number of entities
+     * @param rounds the number of measured rounds, after a short warm-up
+     */
+    static BenchmarkResult run(int entities, int rounds) throws ReflectiveOperationException {
+        BehaviorAssignmentSystem assignment = new BehaviorAssignmentSystem();
+        AssetManager assetManager = mock(AssetManager.class, withSettings().stubOnly());
+        when(assetManager.getAsset(BEHAVIOR, BehaviorTree.class)).thenReturn(Optional.of(mock(BehaviorTree.class)));
+        inject(assignment, "assetManager", assetManager);
+        inject(assignment, "metrics", new MadnessMetrics());
+        assignment.assignmentRate(ENTITIES_PER_FRAME);
+
+        List<EntityRef> members = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            EntityRef entity = mock(EntityRef.class, withSettings().stubOnly());
+            BehaviorComponent behavior = new BehaviorComponent();
+            behavior.interpreter = new Interpreter(new Actor(entity));
+            when(entity.exists()).thenReturn(true);
+            when(entity.getComponent(BehaviorComponent.class)).thenReturn(behavior);
+            when(entity.getComponent(GroupTagComponent.class)).thenReturn(new GroupTagComponent());
+            members.add(entity);
+        }
+
+        BenchmarkResult result = new BenchmarkResult(String.format("%6d entities", entities), "entities");
+        Runtime runtime = Runtime.getRuntime();
+        int[] assigned = new int[1];
+        for (int round = 0; round < WARMUP_ROUNDS + rounds; round++) {
+            assigned[0] = -1;
+            int remaining = entities;
+            boolean measured = round >= WARMUP_ROUNDS;
+            for (int frame = 0; assigned[0] < 0; frame++) {
+                long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+                long start = System.nanoTime();
+                if (frame == 0) {
+                    assignment.assign(members, BEHAVIOR, null, FlockComponent.class, FlockComponent::new,
+                            count -> assigned[0] = count);
+                } else {
+                    assignment.update(FRAME_SECONDS);
+                }
+                long elapsed = System.nanoTime() - start;
+                long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+                int processed = Math.min(remaining, ENTITIES_PER_FRAME);
+                remaining -= processed;
+                if (measured) {
+                    result.record(elapsed, usedAfter - usedBefore, processed);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void inject(Object target, String fieldName, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+/**
+ * Timings of one benchmark run: the time and heap growth of each measured frame, and the
+ * number of items (members, actors, entities) it processed.
+ */
+final class BenchmarkResult {
+
+    private final String label;
+    private final String unit;
+    private int frames;
+    private long items;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+    private long heapGrowth;
+    private int heapSamples;
+
+    /**
+     * @param label describes the run, such as its size and mode
+     * @param unit the name of the processed items, in the plural
+     */
+    BenchmarkResult(String label, String unit) {
+        this.label = label;
+        this.unit = unit;
+    }
+
+    void record(long nanos, long growth, int processed) {
+        frames++;
+        items += processed;
+        totalNanos += nanos;
+        minNanos = Math.min(minNanos, nanos);
+        maxNanos = Math.max(maxNanos, nanos);
+        // A collection during the frame makes the heap shrink; such samples say nothing.
+        if (growth >= 0) {
+            heapGrowth += growth;
+            heapSamples++;
+        }
+    }
+
+    double getMeanMillis() {
+        return frames == 0 ? 0 : totalNanos / 1e6 / frames;
+    }
+
+    double getItemsPerSecond() {
+        return totalNanos == 0 ? 0 : items * 1e9 / totalNanos;
+    }
+
+    /**
+     * @return the average heap growth per frame in bytes, or -1 if every frame saw a collection
+     */
+    long getBytesPerFrame() {
+        return heapSamples == 0 ? -1 : heapGrowth / heapSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d frames, %.3f ms/frame (min %.3f, max %.3f), %.0f %s/s, %s",
+                label, frames, getMeanMillis(), minNanos / 1e6, maxNanos / 1e6, getItemsPerSecond(), unit,
+                getBytesPerFrame() < 0 ? "heap growth n/a" : getBytesPerFrame() + " B/frame heap growth");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.wildAnimalsMadness.components.FlockComponent;
+
+/**
+ * Measures the flock steering path on a {@link SyntheticFlock} whose members drift along
+ * their heading between ticks.
+ * <p>
+ * Runs are seeded, so the same size and mode always steer the same flock. Run {@link #main}
+ * from the test classpath, with the number of measured ticks as its only argument (50 by
+ * default), and compare the results with {@code benchmarks/baseline.txt}, or before and
+ * after a change on the same machine.
+ */
+public final class FlockBenchmark {
+
+    private static final int[] SIZES = {100, 1000, 10000, 50000};
+    private static final int DEFAULT_TICKS = 50;
+
+    private static final int WARMUP_TICKS = 5;
+    private static final float DRIFT = 0.2f;
+    private static final long SEED = 0x5EEDL;
+
+    private FlockBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int ticks = args.length > 0 ? Math.max(1, Integer.parseInt(args[0])) : DEFAULT_TICKS;
+        System.out.println("Flock steering benchmark, " + ticks + " ticks:");
+        for (boolean topological : new boolean[]{false, true}) {
+            for (int members : SIZES) {
+                System.out.println("  " + run(members, ticks, topological));
+            }
+        }
+    }
+
+    /**
+     * Steers a synthetic flock for the given number of ticks.
+     *
+     * @param members the number of members
+     * @param ticks the number of measured ticks, after a short warm-up
+     * @param topological whether the members use their nearest neighbours instead of a radius
+     */
+    static BenchmarkResult run(int members, int ticks, boolean topological) {
+        FlockComponent settings = new FlockComponent();
+        settings.topological = topological;
+        SyntheticFlock flock = new SyntheticFlock(members, SEED, settings);
+        BenchmarkResult result = new BenchmarkResult(String.format("%6d members, %s", members,
+                topological ? "topological" : "metric     "), "members");
+        Runtime runtime = Runtime.getRuntime();
+        for (int tick = 0; tick < WARMUP_TICKS + ticks; tick++) {
+            long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            flock.drift(DRIFT);
+            flock.steer();
+            long elapsed = System.nanoTime() - start;
+            long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+            if (tick >= WARMUP_TICKS) {
+                result.record(elapsed, usedAfter - usedBefore, members);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.junit.Test;
+import org.terasology.entitySystem.entity.EntityRef;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class FlockClustersTest {
+
+    private static final float RADIUS = 4f;
+    private static final int MEMBERS = 150;
+    private static final int TICKS = 400;
+
+    @Test
+    public void clustersMatchConnectedComponents() {
+        Random random = new Random(42);
+        FlockClusters herd = new FlockClusters("herd", RADIUS);
+        EntityRef[] members = new EntityRef[MEMBERS];
+        float[][] positions = new float[MEMBERS][];
+        float[][] checked = new float[MEMBERS][];
+
+        for (int tick = 0; tick < TICKS; tick++) {
+            Map<EntityRef, String> before = flockIds(herd, members);
+            for (int operation = 0; operation < 20; operation++) {
+                int index = random.nextInt(MEMBERS);
+                int roll = random.nextInt(10);
+                if (members[index] == null) {
+                    members[index] = mock(EntityRef.class);
+                    herd.add(members[index]);
+                    positions[index] = null;
+                    checked[index] = null;
+                } else if (roll == 0) {
+                    herd.remove(members[index]);
+                    members[index] = null;
+                    positions[index] = null;
+                } else {
+                    // Always further than the tolerance, so that every move is checked.
+                    float[] position;
+                    do {
+                        position = randomPosition(random);
+                    } while (checked[index] != null && distanceSquared(position, checked[index]) <= RADIUS * RADIUS);
+                    positions[index] = position;
+                    herd.update(members[index], position[0], position[1], position[2]);
+                }
+            }
+            Set<EntityRef> changed = new HashSet<>(herd.recluster());
+            for (int i = 0; i < MEMBERS; i++) {
+                checked[i] = positions[i];
+            }
+
+            assertMatchesComponents(herd, members, positions);
+            for (EntityRef member : members) {
+                String flockId = before.get(member);
+                if (flockId != null && !flockId.equals(herd.getFlockId(member))) {
+                    assertTrue(changed.contains(member));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void smallMovesAndQuietTicksChangeNothing() {
+        FlockClusters herd = new FlockClusters("herd", RADIUS);
+        EntityRef first = mock(EntityRef.class);
+        EntityRef second = mock(EntityRef.class);
+        herd.add(first);
+        herd.add(second);
+        herd.update(first, 0, 0, 0);
+        herd.update(second, 3.5f, 0, 0);
+        assertEquals(1, herd.recluster().size());
+        assertEquals(herd.getFlockId(first), herd.getFlockId(second));
+
+        assertTrue(herd.recluster().isEmpty());
+        // Out of range, but within the tolerance of the last check.
+        herd.update(second, 4.4f, 0, 0);
+        assertTrue(herd.recluster().isEmpty());
+        assertEquals(1, herd.getClusterCount());
+
+        herd.update(second, 20, 0, 0);
+        assertEquals(1, herd.recluster().size());
+        assertNotEquals(herd.getFlockId(first), herd.getFlockId(second));
+        assertEquals(2, herd.getClusterCount());
+    }
+
+    @Test
+    public void removingALinkSplitsOffTheSmallerPart() {
+        FlockClusters herd = new FlockClusters("herd", RADIUS);
+        EntityRef[] chain = new EntityRef[10];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = mock(EntityRef.class);
+            herd.add(chain[i]);
+            herd.update(chain[i], i * 3f, 0, 0);
+        }
+        herd.recluster();
+        assertEquals(1, herd.getClusterCount());
+        String flockId = herd.getFlockId(chain[0]);
+
+        herd.remove(chain[7]);
+        List<EntityRef> changed = new ArrayList<>(herd.recluster());
+        assertEquals(2, herd.getClusterCount());
+        assertEquals(2, changed.size());
+        assertTrue(changed.contains(chain[8]) && changed.contains(chain[9]));
+        assertEquals(flockId, herd.getFlockId(chain[6]));
+        assertEquals(herd.getFlockId(chain[8]), herd.getFlockId(chain[9]));
+        assertNotEquals(flockId, herd.getFlockId(chain[8]));
+    }
+
+    private static void assertMatchesComponents(FlockClusters herd, EntityRef[] members, float[][] positions) {
+        int[] component = new int[members.length];
+        int components = 0;
+        for (int i = 0; i < members.length; i++) {
+            component[i] = -1;
+        }
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == null || component[i] != -1) {
+                continue;
+            }
+            List<Integer> queue = new ArrayList<>();
+            queue.add(i);
+            component[i] = components;
+            for (int next = 0; next < queue.size(); next++) {
+                int current = queue.get(next);
+                for (int other = 0; other < members.length; other++) {
+                    if (members[other] != null && component[other] == -1 && positions[current] != null
+                            && positions[other] != null && distanceSquared(positions[current], positions[other]) <= RADIUS * RADIUS) {
+                        component[other] = components;
+                        queue.add(other);
+                    }
+                }
+            }
+            components++;
+        }
+
+        assertEquals(components, herd.getClusterCount());
+        Map<Integer, String> flockOfComponent = new HashMap<>();
+        Set<String> flockIds = new HashSet<>();
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == null) {
+                continue;
+            }
+            String flockId = herd.getFlockId(members[i]);
+            String expected = flockOfComponent.putIfAbsent(component[i], flockId);
+            if (expected == null) {
+                assertTrue(flockIds.add(flockId));
+            } else {
+                assertEquals(expected, flockId);
+            }
+        }
+    }
+
+    private static Map<EntityRef, String> flockIds(FlockClusters herd, EntityRef[] members) {
+        Map<EntityRef, String> flockIds = new HashMap<>();
+        for (EntityRef member : members) {
+            if (member != null) {
+                flockIds.put(member, herd.getFlockId(member));
+            }
+        }
+        return flockIds;
+    }
+
+    private static float[] randomPosition(Random random) {
+        return new float[]{random.nextFloat() * 60f, random.nextFloat() * 8f, random.nextFloat() * 60f};
+    }
+
+    private static float distanceSquared(float[] a, float[] b) {
+        float dx = a[0] - b[0];
+        float dy = a[1] - b[1];
+        float dz = a[2] - b[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.logic.behavior.core.Actor;
+import org.terasology.logic.behavior.core.BehaviorState;
+import org.terasology.logic.location.LocationComponent;
+import org.terasology.math.geom.Vector3f;
+import org.terasology.minion.move.MinionMoveComponent;
+import org.terasology.wildAnimalsMadness.actions.FlockMoveAction;
+import org.terasology.wildAnimalsMadness.components.FlockComponent;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Measures {@code flock_move} on stub entities: every frame, each actor runs the action
+ * towards a steering target that circles around it at its own rate, so that some actors send
+ * a new move input and the others hold it back. The entities only return their components;
+ * saving components and sending events cost nothing, so the results are the cost of the
+ * action itself.
+ * <p>
+ * Run {@link #main} from the test classpath, with the number of measured frames as its only
+ * argument (200 by default), and compare the results with {@code benchmarks/baseline.txt},
+ * or before and after a change on the same machine.
+ */
+public final class FlockMoveBenchmark {
+
+    private static final int[] SIZES = {100, 1000, 10000};
+    private static final int DEFAULT_FRAMES = 200;
+
+    private static final int WARMUP_FRAMES = 20;
+    private static final float FRAME_SECONDS = 1 / 60f;
+    private static final float TARGET_DISTANCE = 5f;
+    private static final float MAX_TURN_RATE = 2f;
+    private static final long SEED = 0x5EEDL;
+
+    private FlockMoveBenchmark() {
+    }
+
+    public static void main(String[] args) throws ReflectiveOperationException {
+        int frames = args.length > 0 ? Math.max(1, Integer.parseInt(args[0])) : DEFAULT_FRAMES;
+        System.out.println("flock_move benchmark, " + frames + " frames:");
+        for (int actors : SIZES) {
+            System.out.println("  " + run(actors, frames));
+        }
+    }
+
+    /**
+     * Runs the action of every actor for the given number of frames.
+     *
+     * @param actors the number of actors
+     * @param frames the number of measured frames, after a short warm-up
+     */
+    static BenchmarkResult run(int actors, int frames) throws ReflectiveOperationException {
+        Random random = new Random(SEED);
+        CirclingTargets targets = new CirclingTargets(actors);
+        Actor[] members = new Actor[actors];
+        for (int i = 0; i < actors; i++) {
+            EntityRef entity = mock(EntityRef.class, withSettings().stubOnly());
+            LocationComponent location = new LocationComponent();
+            location.setWorldPosition(new Vector3f(random.nextFloat() * 100f, 0, random.nextFloat() * 100f));
+            MinionMoveComponent move = new MinionMoveComponent();
+            move.type = MinionMoveComponent.Type.DIRECT;
+            when(entity.getComponent(LocationComponent.class)).thenReturn(location);
+            when(entity.getComponent(MinionMoveComponent.class)).thenReturn(move);
+            when(entity.getComponent(FlockComponent.class)).thenReturn(new FlockComponent());
+            members[i] = new Actor(entity);
+            targets.add(entity, location.getWorldPosition(), random.nextFloat() * MAX_TURN_RATE);
+        }
+
+        FlockMoveAction action = new FlockMoveAction();
+        Field flockSystem = FlockMoveAction.class.getDeclaredField("flockSystem");
+        flockSystem.setAccessible(true);
+        flockSystem.set(action, targets);
+
+        BenchmarkResult result = new BenchmarkResult(String.format("%6d actors", actors), "actors");
+        Runtime runtime = Runtime.getRuntime();
+        for (int frame = 0; frame < WARMUP_FRAMES + frames; frame++) {
+            targets.advance(FRAME_SECONDS);
+            long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            for (Actor member : members) {
+                member.setDelta(FRAME_SECONDS);
+                action.modify(member, BehaviorState.RUNNING);
+            }
+            long elapsed = System.nanoTime() - start;
+            long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+            if (frame >= WARMUP_FRAMES) {
+                result.record(elapsed, usedAfter - usedBefore, actors);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stands in for the flock system: the target of each actor circles around it.
+     */
+    private static final class CirclingTargets extends FlockSystem {
+        private final Map<EntityRef, Integer> indices = new HashMap<>();
+        private final float[] centreX;
+        private final float[] centreZ;
+        private final float[] turnRate;
+        private final float[] angle;
+
+        private CirclingTargets(int actors) {
+            centreX = new float[actors];
+            centreZ = new float[actors];
+            turnRate = new float[actors];
+            angle = new float[actors];
+        }
+
+        private void add(EntityRef entity, Vector3f position, float rate) {
+            int index = indices.size();
+            indices.put(entity, index);
+            centreX[index] = position.x;
+            centreZ[index] = position.z;
+            turnRate[index] = rate;
+        }
+
+        private void advance(float seconds) {
+            for (int i = 0; i < angle.length; i++) {
+                angle[i] += turnRate[i] * seconds;
+            }
+        }
+
+        @Override
+        public boolean getSteeringTarget(EntityRef member, Vector3f out) {
+            int index = indices.get(member);
+            out.set(centreX[index] + (float) Math.sin(angle[index]) * TARGET_DISTANCE, 0,
+                    centreZ[index] + (float) Math.cos(angle[index]) * TARGET_DISTANCE);
+            return true;
+        }
+
+        @Override
+        public float getInputInterval(EntityRef member) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.junit.Test;
+import org.terasology.wildAnimalsMadness.components.FlockComponent;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the flock simulation headlessly on a {@link SyntheticFlock}. Members walk towards
+ * their steering targets at 10 ticks per second, as {@code flock_move} makes them do.
+ * A change in the checksum of a seeded run means the steering behavior changed; if the
+ * change is intended, update {@link #CHECKSUM}.
+ */
+public class FlockSimulationTest {
+
+    private static final float TICK_SECONDS = 0.1f;
+    private static final long SEED = 42;
+    private static final long CHECKSUM = 0xa607e712493a9204L;
+
+    @Test
+    public void sameSeedGivesSamePositions() {
+        assertEquals(simulate(300, 50, SEED, new FlockComponent()).checksum(),
+                simulate(300, 50, SEED, new FlockComponent()).checksum());
+        assertTrue(simulate(300, 50, SEED, new FlockComponent()).checksum()
+                != simulate(300, 50, SEED + 1, new FlockComponent()).checksum());
+    }
+
+    @Test
+    public void seededRunMatchesRecordedChecksum() {
+        assertEquals(CHECKSUM, simulate(500, 100, SEED, new FlockComponent()).checksum());
+    }
+
+    @Test
+    public void neighboursAlignTheirHeadings() {
+        FlockComponent settings = new FlockComponent();
+        settings.cohesionWeight = 0;
+        settings.separationWeight = 0;
+        SyntheticFlock flock = new SyntheticFlock(500, SEED, settings);
+        float before = flock.localAlignment(settings.searchRadius);
+        run(flock, 100);
+        float after = flock.localAlignment(settings.searchRadius);
+
+        assertTrue("initial alignment " + before, before < 0.5f);
+        assertTrue("final alignment " + after, after > 0.9f);
+    }
+
+    @Test
+    public void topologicalNeighboursAlignTheirHeadings() {
+        FlockComponent settings = new FlockComponent();
+        settings.topological = true;
+        settings.cohesionWeight = 0;
+        settings.separationWeight = 0;
+        SyntheticFlock flock = new SyntheticFlock(500, SEED, settings);
+        run(flock, 100);
+
+        assertTrue(flock.localAlignment(settings.searchRadius) > 0.9f);
+    }
+
+    @Test
+    public void flockDoesNotDisperse() {
+        SyntheticFlock flock = new SyntheticFlock(500, SEED, new FlockComponent());
+        float before = flock.spread();
+        run(flock, 200);
+
+        assertTrue("spread " + before + " -> " + flock.spread(), flock.spread() <= before);
+    }
+
+    @Test
+    public void tickTimeStaysWithinBudget() {
+        SyntheticFlock flock = new SyntheticFlock(1000, SEED, new FlockComponent());
+        long[] tickNanos = run(flock, 100);
+
+        // Generous on purpose: a tick takes a few milliseconds, the budget catches regressions
+        // by an order of magnitude without failing on a slow machine.
+        assertTrue("p90 tick time " + percentileMillis(tickNanos, 90) + " ms", percentileMillis(tickNanos, 90) < 100);
+    }
+
+    private static SyntheticFlock simulate(int members, int ticks, long seed, FlockComponent settings) {
+        SyntheticFlock flock = new SyntheticFlock(members, seed, settings);
+        run(flock, ticks);
+        return flock;
+    }
+
+    /**
+     * @return the duration of every tick, in nanoseconds
+     */
+    private static long[] run(SyntheticFlock flock, int ticks) {
+        long[] tickNanos = new long[ticks];
+        for (int tick = 0; tick < ticks; tick++) {
+            long start = System.nanoTime();
+            flock.steer();
+            flock.walk(TICK_SECONDS);
+            tickNanos[tick] = System.nanoTime() - start;
+        }
+        return tickNanos;
+    }
+
+    private static double percentileMillis(long[] tickNanos, double percentile) {
+        long[] sorted = Arrays.copyOf(tickNanos, tickNanos.length);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+}
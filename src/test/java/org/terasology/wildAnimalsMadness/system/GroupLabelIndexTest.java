@@ -0,0 +1,148 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.junit.Test;
+import org.terasology.entitySystem.entity.EntityRef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+public class GroupLabelIndexTest {
+
+    private static final float CELL_SIZE = 16f;
+    private static final int MEMBERS = 300;
+    private static final int OPERATIONS = 10000;
+
+    @Test
+    public void queriesMatchBruteForceScan() {
+        Random random = new Random(42);
+        GroupLabelIndex index = new GroupLabelIndex(CELL_SIZE);
+        EntityRef[] members = new EntityRef[MEMBERS];
+        float[][] positions = new float[MEMBERS][];
+        for (int i = 0; i < MEMBERS; i++) {
+            members[i] = mock(EntityRef.class);
+        }
+
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int roll = random.nextInt(100);
+            int member = random.nextInt(MEMBERS);
+            if (roll < 60) {
+                positions[member] = randomPosition(random);
+                index.put(members[member], positions[member][0], positions[member][1], positions[member][2]);
+            } else if (roll < 75) {
+                positions[member] = null;
+                index.remove(members[member]);
+            } else if (roll < 90) {
+                float[] centre = randomPosition(random);
+                float radius = random.nextFloat() * 100f;
+                EntityRef[] out = new EntityRef[MEMBERS];
+                int count = index.queryRadius(centre[0], centre[1], centre[2], radius, out);
+                assertEquals(withinRadius(members, positions, centre, radius),
+                        new HashSet<>(Arrays.asList(out).subList(0, count)));
+                assertEquals(count, index.countRadius(centre[0], centre[1], centre[2], radius));
+            } else {
+                float[] centre = randomPosition(random);
+                int k = 1 + random.nextInt(12);
+                EntityRef[] out = new EntityRef[k];
+                int count = index.queryNearest(centre[0], centre[1], centre[2], k, out);
+                assertArrayEquals(nearestDistances(positions, centre, k),
+                        distances(members, positions, centre, out, count), 0f);
+            }
+            assertEquals(countPresent(positions), index.size());
+        }
+    }
+
+    @Test
+    public void nearestFindsFarAwayMembers() {
+        GroupLabelIndex index = new GroupLabelIndex(CELL_SIZE);
+        EntityRef near = mock(EntityRef.class);
+        EntityRef far = mock(EntityRef.class);
+        index.put(near, 2000f, 0, 0);
+        index.put(far, -5000f, 0, 0);
+
+        EntityRef[] out = new EntityRef[3];
+        assertEquals(2, index.queryNearest(0, 0, 0, 3, out));
+        assertSame(near, out[0]);
+        assertSame(far, out[1]);
+    }
+
+    private static Set<EntityRef> withinRadius(EntityRef[] members, float[][] positions, float[] centre, float radius) {
+        Set<EntityRef> expected = new HashSet<>();
+        for (int i = 0; i < members.length; i++) {
+            if (positions[i] != null && distanceSquared(positions[i], centre) <= radius * radius) {
+                expected.add(members[i]);
+            }
+        }
+        return expected;
+    }
+
+    private static float[] nearestDistances(float[][] positions, float[] centre, int k) {
+        List<Float> all = new ArrayList<>();
+        for (float[] position : positions) {
+            if (position != null) {
+                all.add(distanceSquared(position, centre));
+            }
+        }
+        all.sort(null);
+        float[] expected = new float[Math.min(k, all.size())];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = all.get(i);
+        }
+        return expected;
+    }
+
+    private static float[] distances(EntityRef[] members, float[][] positions, float[] centre, EntityRef[] found, int count) {
+        List<EntityRef> memberList = Arrays.asList(members);
+        float[] distances = new float[count];
+        for (int i = 0; i < count; i++) {
+            distances[i] = distanceSquared(positions[memberList.indexOf(found[i])], centre);
+        }
+        return distances;
+    }
+
+    private static int countPresent(float[][] positions) {
+        int count = 0;
+        for (float[] position : positions) {
+            if (position != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static float[] randomPosition(Random random) {
+        // Mostly a dense area, with a few members far away.
+        float extent = random.nextInt(10) == 0 ? 3000f : 200f;
+        return new float[]{(random.nextFloat() - 0.5f) * extent, random.nextFloat() * 30f, (random.nextFloat() - 0.5f) * extent};
+    }
+
+    private static float distanceSquared(float[] a, float[] b) {
+        float dx = a[0] - b[0];
+        float dy = a[1] - b[1];
+        float dz = a[2] - b[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
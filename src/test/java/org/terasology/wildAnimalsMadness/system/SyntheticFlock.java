@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.terasology.wildAnimalsMadness.system;
+
+import org.terasology.entitySystem.entity.EntityRef;
+import org.terasology.wildAnimalsMadness.components.FlockComponent;
+
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * A flock of synthetic members, backed by mock entities that are never read, shared by the
+ * flock benchmark and the flock simulation tests. Members are spawned from a seed in a disc at a constant density,
+ * with random headings. Spawning only uses {@link Random} and {@link StrictMath}, so the same
+ * seed gives the same flock on every JVM.
+ */
+final class SyntheticFlock {
+
+    private static final float MEMBERS_PER_SQUARE_BLOCK = 0.05f;
+
+    private final Flock flock;
+    private final FlockComponent settings;
+    private final int members;
+    private final float[] x;
+    private final float[] z;
+    private final float[] directionX;
+    private final float[] directionZ;
+
+    /**
+     * @param settings the flocking settings of every member; level of detail is not applied
+     */
+    SyntheticFlock(int members, long seed, FlockComponent settings) {
+        this.members = members;
+        this.settings = settings;
+        flock = new Flock("synthetic", settings.searchRadius);
+        x = new float[members];
+        z = new float[members];
+        directionX = new float[members];
+        directionZ = new float[members];
+
+        Random random = new Random(seed);
+        float radius = (float) StrictMath.sqrt(members / MEMBERS_PER_SQUARE_BLOCK / StrictMath.PI);
+        for (int i = 0; i < members; i++) {
+            flock.add(mock(EntityRef.class));
+            float distance = radius * (float) StrictMath.sqrt(random.nextFloat());
+            double bearing = random.nextDouble() * 2 * StrictMath.PI;
+            x[i] = distance * (float) StrictMath.sin(bearing);
+            z[i] = distance * (float) StrictMath.cos(bearing);
+            double angle = random.nextDouble() * 2 * StrictMath.PI;
+            directionX[i] = (float) StrictMath.sin(angle);
+            directionZ[i] = (float) StrictMath.cos(angle);
+        }
+    }
+
+    /**
+     * Captures every member and steers the whole flock on the calling thread, which is what a
+     * simulation tick costs apart from reading and writing components.
+     */
+    void steer() {
+        for (int i = 0; i < members; i++) {
+            flock.capture(i, x[i], 0, z[i], directionX[i], 0, directionZ[i], settings, FlockSnapshot.LOD_FULL, 0);
+        }
+        flock.beginCompute(0);
+        while (flock.hasComputeWork()) {
+            flock.nextComputeRange(members);
+            flock.call();
+        }
+    }
+
+    /**
+     * Moves every member along its current heading.
+     */
+    void drift(float distance) {
+        for (int i = 0; i < members; i++) {
+            x[i] += directionX[i] * distance;
+            z[i] += directionZ[i] * distance;
+        }
+    }
+
+    /**
+     * Moves every member towards its last steering target at its steered speed, as
+     * {@code flock_move} makes them do, and turns it to face the target.
+     */
+    void walk(float seconds) {
+        FlockSnapshot snapshot = flock.getSnapshot();
+        for (int i = 0; i < members; i++) {
+            float offsetX = snapshot.resultX[i] - x[i];
+            float offsetZ = snapshot.resultZ[i] - z[i];
+            float length = (float) Math.sqrt(offsetX * offsetX + offsetZ * offsetZ);
+            if (length > 1e-4f) {
+                float step = Math.min(length, snapshot.resultSpeed[i] * seconds);
+                directionX[i] = offsetX / length;
+                directionZ[i] = offsetZ / length;
+                x[i] += directionX[i] * step;
+                z[i] += directionZ[i] * step;
+            }
+        }
+    }
+
+    /**
+     * @return the root mean square distance of the members to their centre
+     */
+    float spread() {
+        if (members == 0) {
+            return 0;
+        }
+        double centreX = 0;
+        double centreZ = 0;
+        for (int i = 0; i < members; i++) {
+            centreX += x[i];
+            centreZ += z[i];
+        }
+        centreX /= members;
+        centreZ /= members;
+        double sum = 0;
+        for (int i = 0; i < members; i++) {
+            double dx = x[i] - centreX;
+            double dz = z[i] - centreZ;
+            sum += dx * dx + dz * dz;
+        }
+        return (float) Math.sqrt(sum / members);
+    }
+
+    /**
+     * @return the length of the average heading, from 0 (no common heading) to 1 (all members aligned)
+     */
+    float alignment() {
+        if (members == 0) {
+            return 0;
+        }
+        double sumX = 0;
+        double sumZ = 0;
+        for (int i = 0; i < members; i++) {
+            sumX += directionX[i];
+            sumZ += directionZ[i];
+        }
+        return (float) (Math.sqrt(sumX * sumX + sumZ * sumZ) / members);
+    }
+
+    /**
+     * @return the average, over every member, of the length of the mean heading of the members
+     *         within {@code radius} of it, itself included; 1 when every neighbourhood is aligned
+     */
+    float localAlignment(float radius) {
+        if (members == 0) {
+            return 0;
+        }
+        float radiusSquared = radius * radius;
+        double total = 0;
+        for (int i = 0; i < members; i++) {
+            double sumX = 0;
+            double sumZ = 0;
+            int count = 0;
+            for (int j = 0; j < members; j++) {
+                float dx = x[j] - x[i];
+                float dz = z[j] - z[i];
+                if (dx * dx + dz * dz <= radiusSquared) {
+                    sumX += directionX[j];
+                    sumZ += directionZ[j];
+                    count++;
+                }
+            }
+            total += Math.sqrt(sumX * sumX + sumZ * sumZ) / count;
+        }
+        return (float) (total / members);
+    }
+
+    /**
+     * @return a hash of the exact member positions
+     */
+    long checksum() {
+        long hash = 17;
+        for (int i = 0; i < members; i++) {
+            hash = hash * 31 + Float.floatToIntBits(x[i]);
+            hash = hash * 31 + Float.floatToIntBits(z[i]);
+        }
+        return hash;
+    }
+}